@@ -6,12 +6,20 @@
 
 package ch.cern.mcplots;
 
+import ch.cern.mcplots.data.AnalysisInfo;
+import ch.cern.mcplots.data.LocalAnalysisSource;
 import ch.cern.mcplots.data.RivetInfo;
 import ch.cern.mcplots.data.TracCrawler;
 import ch.cern.mcplots.ui.ProgressWindow;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.io.File;
 import java.util.HashMap;
-import java.util.Map;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import javax.swing.DefaultListModel;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 import javax.swing.UIManager;
 import javax.swing.UnsupportedLookAndFeelException;
 import javax.swing.table.DefaultTableModel;
@@ -21,34 +29,128 @@ import javax.swing.table.DefaultTableModel;
  * @author icharala
  */
 public class RivetConfig extends javax.swing.JFrame 
-                         implements RivetInfo.AsyncAnalysisMatrixHandler, RivetInfo.AsyncTagsHandler 
+                         implements RivetInfo.AsyncTagsHandler 
     {
 
+    /**
+     * How often the received analyses are added to the table (in milliseconds)
+     */
+    private static final int TABLE_UPDATE_INTERVAL = 50;
+    
     HashMap<String, String> rivetTags;
     RivetInfo rivetInfo;
+    
+    /**
+     * The revision currently shown in the table
+     */
+    private String activeRev;
+    
+    /**
+     * The fetch currently shown in the table, increased every time a tag
+     * is selected (even the same one again)
+     */
+    private volatile int activeGeneration;
+    
+    /**
+     * A table row received but not yet added to the table
+     */
+    private static class PendingRow {
+        int generation;
+        Vector<Object> row;
+        
+        PendingRow(int generation, Vector<Object> row) {
+            this.generation = generation;
+            this.row = row;
+        }
+    }
+    
+    /**
+     * Receiver of the analyses of a single fetch
+     */
+    private class AnalysesFetch implements RivetInfo.AsyncAnalysisMatrixHandler, RivetInfo.AsyncAnalysisStreamHandler {
+        
+        final int generation;
+        
+        AnalysesFetch(int generation) {
+            this.generation = generation;
+        }
+        
+        @Override
+        public void rivetAnalysisReceived(String rev, String name, AnalysisInfo info) {
+            analysisReceived(generation, name, info);
+        }
+        
+        @Override
+        public void rivetMatrixReceived(HashMap<String, AnalysisInfo> analysisData) {
+
+            // All rows were already streamed, just make sure they are shown
+            SwingUtilities.invokeLater(new Runnable() {
+                @Override
+                public void run() {
+                    flushPendingRows();
+                }
+            });
 
-    @Override
-    public void rivetMatrixReceived(HashMap<String, Object> analysisData) {
+        }
+        
+    }
+    
+    /**
+     * The table rows received but not yet added to the table
+     */
+    private final ConcurrentLinkedQueue<PendingRow> pendingRows = new ConcurrentLinkedQueue<>();
+    
+    /**
+     * Timer that adds the pending rows to the table, in the event dispatch thread
+     */
+    private final Timer tableUpdater = new Timer(TABLE_UPDATE_INTERVAL, new ActionListener() {
+        @Override
+        public void actionPerformed(ActionEvent e) {
+            flushPendingRows();
+        }
+    });
 
-        // Populate list
-        DefaultTableModel model = (DefaultTableModel) jRivetTable.getModel();
-        model.setRowCount(0);
+    /**
+     * Queue the table row of a received analysis
+     * @param generation The fetch the analysis belongs to
+     */
+    private void analysisReceived(int generation, String name, AnalysisInfo info) {
         
-        for (String fname: analysisData.keySet()) {
-            Map info = (Map) analysisData.get(fname);
-            if (info == null) {
-                model.addRow(new Object[]
-                    { fname, "????", "Error parsing data!", "???", "???", "", false }
-                );
-            } else {
-                model.addRow(new Object[]
-                    { fname, info.get("Year") , info.get("Summary"), info.get("Experiment"), info.get("Collider"), info.get("Status"), false }
-                );
-            }
+        // Drop late results of a previous selection
+        if (generation != activeGeneration) return;
+        
+        // Build row
+        Vector<Object> row = new Vector<>(7);
+        if (info == null) {
+            row.add(name); row.add("????"); row.add("Error parsing data!"); row.add("???"); row.add("???"); row.add("");
+        } else {
+            row.add(name); row.add(info.getYear()); row.add(info.getSummary()); row.add(info.getExperiment()); row.add(info.getCollider()); row.add(info.getStatus());
         }
+        row.add(false);
+        
+        // It's going to be added by the table updater
+        pendingRows.add(new PendingRow(generation, row));
         
-        jRivetTable.setModel(model);
-
+    }
+    
+    /**
+     * Add all the pending rows to the table, with a single table event.
+     * Must be called from the event dispatch thread.
+     */
+    private void flushPendingRows() {
+        if (pendingRows.isEmpty()) return;
+        
+        DefaultTableModel model = (DefaultTableModel) jRivetTable.getModel();
+        int first = model.getRowCount();
+        PendingRow p;
+        while ((p = pendingRows.poll()) != null) {
+            if (p.generation == activeGeneration) {
+                model.getDataVector().add(p.row);
+            }
+        }
+        if (model.getRowCount() > first) {
+            model.fireTableRowsInserted(first, model.getRowCount()-1);
+        }
     }
 
     @Override
@@ -101,11 +203,25 @@ public class RivetConfig extends javax.swing.JFrame
         // Initialize TRAC Crawler to rivet TRAC
         TracCrawler.trustAllSSL();
 
-        // Initialize Rivet info class
-        rivetInfo = new RivetInfo();
+        // Initialize Rivet info class, from a local Rivet tree if there is one
+        String localRivet = System.getProperty("mcplots.rivet.local");
+        if ((localRivet != null) && !localRivet.isEmpty()) {
+            rivetInfo = new RivetInfo(new LocalAnalysisSource(new File(localRivet)));
+        } else {
+            rivetInfo = new RivetInfo();
+        }
         
         rivetInfo.asyncGetTags(this, ProgressWindow.singleton());
         
+        // Start streaming analyses to the table
+        tableUpdater.start();
+        
+    }
+    
+    @Override
+    public void dispose() {
+        tableUpdater.stop();
+        super.dispose();
     }
 
     /**
@@ -434,8 +550,19 @@ public class RivetConfig extends javax.swing.JFrame
         String tagName = (String) jRivetTags.getSelectedItem();
         if (tagName == null) return;
         
-        // List analysis files
-        rivetInfo.asyncGetAnalysesMatrix(rivetTags.get(tagName), 2, this, ProgressWindow.singleton());
+        // Start over with an empty table
+        String previousRev = activeRev;
+        activeRev = rivetTags.get(tagName);
+        AnalysesFetch fetch = new AnalysesFetch(++activeGeneration);
+        pendingRows.clear();
+        ((DefaultTableModel) jRivetTable.getModel()).setRowCount(0);
+        
+        // List analysis files, re-using what did not change since the previous tag
+        if ((previousRev != null) && !previousRev.isEmpty()) {
+            rivetInfo.asyncGetAnalysesMatrixDelta(previousRev, activeRev, 32, fetch, ProgressWindow.singleton());
+        } else {
+            rivetInfo.asyncGetAnalysesMatrix(activeRev, 32, fetch, ProgressWindow.singleton());
+        }
         
     }//GEN-LAST:event_jRivetTagsActionPerformed
 
@@ -0,0 +1,177 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package ch.cern.mcplots.data;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The fields of a Rivet analysis info file that are used by the
+ * configuration tool.
+ *
+ * It's built once from the YAML document of the .info file, and kept
+ * in the binary info cache of the revision afterwards.
+ *
+ * @author icharala
+ */
+public final class AnalysisInfo {
+
+    private final String name;
+    private final String year;
+    private final String summary;
+    private final String experiment;
+    private final String collider;
+    private final String status;
+    private final List<String> references;
+    private final List<String> energies;
+
+    /**
+     * Create an analysis info record
+     */
+    public AnalysisInfo(String name, String year, String summary, String experiment, String collider, String status, List<String> references, List<String> energies) {
+        this.name = name;
+        this.year = year;
+        this.summary = summary;
+        this.experiment = experiment;
+        this.collider = collider;
+        this.status = status;
+        this.references = Collections.unmodifiableList(new ArrayList<>(references));
+        this.energies = Collections.unmodifiableList(new ArrayList<>(energies));
+    }
+
+    /**
+     * Build the record from the parsed YAML document of an info file
+     *
+     * @param name The name of the analysis
+     * @param document The YAML document
+     * @return The record or null if the document is not a mapping
+     */
+    static AnalysisInfo fromYaml(String name, Object document) {
+        if (!(document instanceof Map)) return null;
+        Map<?, ?> info = (Map<?, ?>) document;
+        return new AnalysisInfo(
+                name,
+                string(info.get("Year")),
+                string(info.get("Summary")),
+                string(info.get("Experiment")),
+                string(info.get("Collider")),
+                string(info.get("Status")),
+                strings(info.get("References")),
+                strings(info.get("Energies"))
+        );
+    }
+
+    /**
+     * Convert a YAML scalar to string
+     */
+    private static String string(Object o) {
+        return (o == null) ? "" : o.toString().trim();
+    }
+
+    /**
+     * Convert a YAML sequence (or a single scalar) to a list of strings
+     */
+    private static List<String> strings(Object o) {
+        ArrayList<String> ans = new ArrayList<>();
+        if (o instanceof List) {
+            for (Object e: (List<?>) o) {
+                ans.add(string(e));
+            }
+        } else if (o != null) {
+            ans.add(string(o));
+        }
+        return ans;
+    }
+
+    /**
+     * Read a record written with write()
+     *
+     * @param in The stream to read from
+     * @return The record
+     * @throws IOException
+     */
+    static AnalysisInfo read(DataInputStream in) throws IOException {
+        return new AnalysisInfo(in.readUTF(), in.readUTF(), in.readUTF(), in.readUTF(), in.readUTF(), in.readUTF(), readList(in), readList(in));
+    }
+
+    private static List<String> readList(DataInputStream in) throws IOException {
+        int n = in.readUnsignedShort();
+        ArrayList<String> ans = new ArrayList<>(n);
+        for (int i=0; i<n; i++) {
+            ans.add(in.readUTF());
+        }
+        return ans;
+    }
+
+    /**
+     * Write the record in binary form
+     *
+     * @param out The stream to write to
+     * @throws IOException
+     */
+    void write(DataOutputStream out) throws IOException {
+        out.writeUTF(name);
+        out.writeUTF(year);
+        out.writeUTF(summary);
+        out.writeUTF(experiment);
+        out.writeUTF(collider);
+        out.writeUTF(status);
+        writeList(out, references);
+        writeList(out, energies);
+    }
+
+    private static void writeList(DataOutputStream out, List<String> list) throws IOException {
+        out.writeShort(list.size());
+        for (String s: list) {
+            out.writeUTF(s);
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getYear() {
+        return year;
+    }
+
+    public String getSummary() {
+        return summary;
+    }
+
+    public String getExperiment() {
+        return experiment;
+    }
+
+    public String getCollider() {
+        return collider;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    /**
+     * @return The references (ex. arXiv or journal identifiers)
+     */
+    public List<String> getReferences() {
+        return references;
+    }
+
+    /**
+     * @return The beam energies, as written in the info file
+     */
+    public List<String> getEnergies() {
+        return energies;
+    }
+
+}
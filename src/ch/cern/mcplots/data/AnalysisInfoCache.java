@@ -0,0 +1,173 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package ch.cern.mcplots.data;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Binary cache of the parsed analysis infos of every tagged revision.
+ *
+ * A revision is stored in a single file, next to the TRAC cache, with
+ * all its analyses. The analyses known to have no (valid) info are kept
+ * as MISSING, so they are not fetched again either. The file of a
+ * revision is only read the first time the revision is requested, so
+ * re-opening a tag needs neither the network nor the YAML parser.
+ *
+ * @author icharala
+ */
+final class AnalysisInfoCache {
+
+    /**
+     * Magic number at the beginning of the cache file ('MCAI')
+     */
+    private static final int MAGIC = 0x4d434149;
+
+    /**
+     * The version of the format
+     */
+    private static final int VERSION = 1;
+
+    /**
+     * Placeholder for the analyses known to have no info, since the maps
+     * of the revisions do not keep null values apart from absent names
+     */
+    static final AnalysisInfo MISSING = new AnalysisInfo("", "", "", "", "", "", Collections.<String>emptyList(), Collections.<String>emptyList());
+
+    /**
+     * The directory of the cache files
+     */
+    private final File directory;
+
+    /**
+     * The base URL of the repository the revisions belong to
+     */
+    private final String baseURL;
+
+    /**
+     * The revisions already loaded (or stored)
+     */
+    private final ConcurrentHashMap<String, Map<String, AnalysisInfo>> loaded = new ConcurrentHashMap<>();
+
+    /**
+     * Create the cache of a repository
+     * @param directory The directory of the cache files
+     * @param baseURL The base URL of the repository
+     */
+    AnalysisInfoCache(File directory, String baseURL) {
+        this.directory = directory;
+        this.baseURL = baseURL;
+    }
+
+    /**
+     * @return The cache file of a revision
+     */
+    private File fileOf(String rev) {
+        return new File(directory, TracCache.key(baseURL, "anainfo", rev) + ".ainfo");
+    }
+
+    /**
+     * Get the analyses of a revision
+     *
+     * @param rev The (tagged) revision
+     * @return The infos by analysis name (MISSING for analyses without info), or null if not cached
+     */
+    Map<String, AnalysisInfo> get(String rev) {
+        if (rev.isEmpty()) return null;
+        Map<String, AnalysisInfo> ans = loaded.get(rev);
+        if (ans != null) return ans;
+
+        File f = fileOf(rev);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)))) {
+            if ((in.readInt() != MAGIC) || (in.readInt() != VERSION)) {
+                throw new IOException("Invalid analysis info cache " + f);
+            }
+            int n = in.readInt();
+            HashMap<String, AnalysisInfo> infos = new HashMap<>(n * 2);
+            for (int i=0; i<n; i++) {
+                String name = in.readUTF();
+                infos.put(name, in.readBoolean() ? AnalysisInfo.read(in) : MISSING);
+            }
+            ans = Collections.unmodifiableMap(infos);
+        } catch (FileNotFoundException ex) {
+            return null;
+        } catch (IOException ex) {
+            Logger.getLogger(AnalysisInfoCache.class.getName()).log(Level.WARNING, null, ex);
+            return null;
+        }
+
+        loaded.put(rev, ans);
+        return ans;
+    }
+
+    /**
+     * Store the analyses of a revision
+     *
+     * @param rev The (tagged) revision
+     * @param infos The infos by analysis name (null or MISSING for analyses without info)
+     */
+    void put(String rev, Map<String, AnalysisInfo> infos) {
+        if (rev.isEmpty()) return;
+        HashMap<String, AnalysisInfo> copy = new HashMap<>(infos.size() * 2);
+        for (Map.Entry<String, AnalysisInfo> e: infos.entrySet()) {
+            copy.put(e.getKey(), (e.getValue() == null) ? MISSING : e.getValue());
+        }
+        loaded.put(rev, Collections.unmodifiableMap(copy));
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Logger.getLogger(AnalysisInfoCache.class.getName()).log(Level.WARNING, "Unable to create {0}", directory);
+            return;
+        }
+
+        // Write to a temporary file and move in place
+        File f = fileOf(rev);
+        File tmp = new File(directory, f.getName() + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(copy.size());
+                for (Map.Entry<String, AnalysisInfo> e: copy.entrySet()) {
+                    out.writeUTF(e.getKey());
+                    out.writeBoolean(e.getValue() != MISSING);
+                    if (e.getValue() != MISSING) {
+                        e.getValue().write(out);
+                    }
+                }
+            }
+            try {
+                Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(AnalysisInfoCache.class.getName()).log(Level.WARNING, "Unable to write " + f, ex);
+            try {
+                Files.deleteIfExists(tmp.toPath());
+            } catch (IOException ex2) {
+                // Nothing more to do
+            }
+        }
+    }
+
+}
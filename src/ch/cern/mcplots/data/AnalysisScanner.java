@@ -0,0 +1,279 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package ch.cern.mcplots.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Scanner of the custom analyses in several folder trees.
+ *
+ * The roots are given in order of precedence (ex. the user overlay, the
+ * site's mcprod analyses and a CVMFS release); when an analysis exists in
+ * more than one root, the one of the first root is used. Within a root the
+ * folders are scanned recursively, and the first path in alphabetical order
+ * wins.
+ *
+ * Every folder is listed by a separate task on a bounded pool, so the
+ * latency of network filesystems (AFS, CVMFS) is overlapped. The analyses
+ * are reported to the listener as soon as their folder is listed.
+ *
+ * @author icharala
+ */
+public class AnalysisScanner {
+
+    /**
+     * Receiver of the analyses, as they are found
+     */
+    public static interface Listener {
+
+        /**
+         * An analysis was found. The same analysis is reported again if it
+         * is later found in a root of higher precedence; the last report is
+         * the one that counts.
+         *
+         * @param analysis The analysis entry
+         * @param root The index of the root it was found in
+         */
+        public void analysisFound( CustomAnalyses.Data analysis, int root );
+
+    }
+
+    /**
+     * The extensions of the analysis files. Entries with these extensions
+     * are taken as files without checking, which saves a stat() call for
+     * almost every entry of the folders.
+     */
+    private static final Set<String> KNOWN_EXTENSIONS = new HashSet<>(Arrays.asList(
+            "cc", "yoda", "aida", "plot", "info"
+    ));
+
+    /**
+     * The default number of folders listed at the same time
+     */
+    public static final int DEFAULT_THREADS = 16;
+
+    /**
+     * An analysis found in a folder
+     */
+    private static class Found {
+        final int root;
+        final String path;
+        final CustomAnalyses.Data data;
+
+        Found(int root, String path, CustomAnalyses.Data data) {
+            this.root = root;
+            this.path = path;
+            this.data = data;
+        }
+
+        /**
+         * Check if this analysis takes precedence over another one
+         */
+        boolean betterThan(Found other) {
+            if (root != other.root) return root < other.root;
+            return path.compareTo(other.path) < 0;
+        }
+    }
+
+    /**
+     * The roots, in order of precedence
+     */
+    private final ArrayList<File> roots;
+
+    /**
+     * The number of folders listed at the same time
+     */
+    private int threads;
+
+    /**
+     * Create a scanner of the given folders
+     * @param roots The root folders, in order of precedence
+     */
+    public AnalysisScanner(List<File> roots) {
+        this.roots = new ArrayList<>(roots);
+        this.threads = DEFAULT_THREADS;
+    }
+
+    /**
+     * Set the number of folders that are listed at the same time
+     * @param threads The number of threads
+     */
+    public void setThreads(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Scan all the roots in the background
+     *
+     * @param listener The receiver of the analyses as they are found (or null)
+     * @return The future with all the analyses by name
+     */
+    public Future<Map<String, CustomAnalyses.Data>> scan(Listener listener) {
+        return new Scan(listener).start();
+    }
+
+    /**
+     * A single scan of all the roots
+     */
+    private class Scan {
+
+        private final Listener listener;
+        private final ExecutorService pool;
+        private final AtomicInteger pending;
+        private final HashMap<String, Found> found;
+        private final Set<Object> visited;
+        private final FutureTask<Map<String, CustomAnalyses.Data>> result;
+
+        Scan(Listener listener) {
+            this.listener = listener;
+            this.pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "AnalysisScanner");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            this.pending = new AtomicInteger(0);
+            this.found = new HashMap<>();
+            this.visited = Collections.newSetFromMap(new ConcurrentHashMap<Object, Boolean>());
+            this.result = new FutureTask<>(new Callable<Map<String, CustomAnalyses.Data>>() {
+                @Override
+                public Map<String, CustomAnalyses.Data> call() {
+                    HashMap<String, CustomAnalyses.Data> ans = new HashMap<>();
+                    synchronized (found) {
+                        for (Map.Entry<String, Found> e: found.entrySet()) {
+                            ans.put(e.getKey(), e.getValue().data);
+                        }
+                    }
+                    return ans;
+                }
+            });
+        }
+
+        Future<Map<String, CustomAnalyses.Data>> start() {
+            pending.incrementAndGet();
+            for (int i=0; i<roots.size(); i++) {
+                File root = roots.get(i);
+                if (root.isDirectory()) {
+                    submit(root.toPath(), i);
+                } else {
+                    Logger.getLogger(AnalysisScanner.class.getName()).log(Level.WARNING, "Missing analyses folder {0}", root);
+                }
+            }
+            done();
+            return result;
+        }
+
+        /**
+         * List a folder in the background
+         */
+        private void submit(final Path folder, final int root) {
+            pending.incrementAndGet();
+            pool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        list(folder, root);
+                    } finally {
+                        done();
+                    }
+                }
+            });
+        }
+
+        /**
+         * Complete the scan after the last folder
+         */
+        private void done() {
+            if (pending.decrementAndGet() == 0) {
+                result.run();
+                pool.shutdown();
+            }
+        }
+
+        /**
+         * List a folder, queue its sub-folders, and merge its analyses
+         */
+        private void list(Path folder, int root) {
+            try {
+
+                // Do not follow links in circles
+                Object key = Files.readAttributes(folder, BasicFileAttributes.class).fileKey();
+                if (!visited.add(Arrays.asList((key != null) ? key : folder.toRealPath(), root))) return;
+
+                HashMap<String, Set<String>> local = new HashMap<>();
+                try (DirectoryStream<Path> entries = Files.newDirectoryStream(folder)) {
+                    for (Path p: entries) {
+                        String fileName = p.getFileName().toString();
+                        if (fileName.startsWith(".")) continue;
+
+                        // Known analysis files need no further checks
+                        String n = CustomAnalyses.analysisOf(fileName);
+                        String ext = (n == null) ? null : fileName.substring(n.length()+1);
+                        if ((ext == null) || !KNOWN_EXTENSIONS.contains(ext)) {
+                            if (Files.isDirectory(p)) {
+                                submit(p, root);
+                                continue;
+                            }
+                            if ((ext == null) || !Files.isRegularFile(p)) continue;
+                        }
+
+                        Set<String> exts = local.get(n);
+                        if (exts == null) {
+                            exts = new HashSet<>();
+                            local.put(n, exts);
+                        }
+                        exts.add(ext);
+                    }
+                }
+
+                // Merge with the analyses of the other folders
+                String path = folder.toString();
+                for (Map.Entry<String, Set<String>> e: local.entrySet()) {
+                    Found f = new Found(root, path, CustomAnalyses.newData(folder.toFile(), e.getKey(), e.getValue()));
+                    synchronized (found) {
+                        Found prev = found.get(e.getKey());
+                        if ((prev != null) && !f.betterThan(prev)) continue;
+                        found.put(e.getKey(), f);
+                        if (listener != null) {
+                            listener.analysisFound(f.data, root);
+                        }
+                    }
+                }
+
+            } catch (IOException ex) {
+                Logger.getLogger(AnalysisScanner.class.getName()).log(Level.WARNING, "Unable to list " + folder, ex);
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,77 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package ch.cern.mcplots.data;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Where the Rivet analyses and their info files are looked-up from
+ * (ex. the Rivet TRAC, or a local source checkout or installation).
+ *
+ * The methods are called from several threads at the same time.
+ *
+ * @author icharala
+ */
+public interface AnalysisSource {
+
+    /**
+     * Get the available Rivet tags
+     * @return A HashMap in [tag] => [revision] format, or null in case of error
+     */
+    public HashMap<String, String> getTags();
+
+    /**
+     * Get the names of all analyses in the given revision
+     * @param rev The revision (as returned by getTags)
+     * @return The analysis names, or null in case of error
+     */
+    public ArrayList<String> listAnalyses(String rev);
+
+    /**
+     * Get the contents of the info file of an analysis
+     *
+     * @param name The name of the analysis
+     * @param rev The revision
+     * @param sameAsRev A revision known to have the same info file (or null)
+     * @return The contents, or empty if missing
+     * @throws IOException If the file could not be read, but may be if retried
+     */
+    public String readAnalysisInfo(String name, String rev, String sameAsRev) throws IOException;
+
+    /**
+     * Get the revision each info file was last changed in. Two revisions
+     * of an info file with the same last-changed revision are the same.
+     *
+     * @param rev The revision
+     * @return The last-changed revisions by analysis name, or null if not known
+     */
+    public Map<String, String> getInfoRevisions(String rev);
+
+    /**
+     * Open a single archive (zip, tar or tar.gz) of the sources of a
+     * revision, to read all the analyses at once. The caller must close
+     * the returned stream.
+     *
+     * @param rev The revision
+     * @return The archive stream, or null if the source has no archives
+     * @throws IOException If the archive could not be requested
+     */
+    public InputStream openArchive(String rev) throws IOException;
+
+    /**
+     * Get an identifier of this source, for caching the parsed infos of
+     * its revisions.
+     *
+     * @return The identifier, or null if the contents of a revision may change
+     */
+    public String getCacheId();
+
+}
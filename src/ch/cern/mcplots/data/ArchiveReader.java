@@ -0,0 +1,299 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package ch.cern.mcplots.data;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Sequential reader for zip, tar and tar.gz archives.
+ *
+ * The archive is read in a single pass, so it can be streamed straight
+ * from the network without being stored on disk first.
+ *
+ * @author icharala
+ */
+public class ArchiveReader {
+
+    /**
+     * Size of a tar block
+     */
+    private static final int TAR_BLOCK = 512;
+
+    /**
+     * Encoding of the file names
+     */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Receiver of the archive entries
+     */
+    public static interface Visitor {
+
+        /**
+         * Called for every regular file in the archive. The contents stream
+         * is only valid until this function returns, and it does not need
+         * to be consumed or closed.
+         *
+         * @param name The path of the file in the archive
+         * @param contents The contents of the file
+         * @throws IOException
+         */
+        public void entry( String name, InputStream contents ) throws IOException;
+
+    }
+
+    /**
+     * Read the entire contents of an archive entry
+     *
+     * @param contents The entry stream passed to the visitor
+     * @return The contents of the file as UTF-8 string
+     * @throws IOException
+     */
+    public static String readString(InputStream contents) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(4096);
+        byte[] chunk = new byte[4096];
+        int n;
+        while ((n = contents.read(chunk)) != -1) {
+            out.write(chunk, 0, n);
+        }
+        return new String(out.toByteArray(), UTF8);
+    }
+
+    /**
+     * Read an archive, detecting the format from its first bytes
+     *
+     * @param in The archive stream
+     * @param visitor The receiver of the archive entries
+     * @throws IOException
+     */
+    public static void read(InputStream in, Visitor visitor) throws IOException {
+        in = new BufferedInputStream(in, 65536);
+
+        // Peek at the magic number
+        in.mark(4);
+        int b0 = in.read(), b1 = in.read();
+        in.reset();
+
+        if ((b0 == 'P') && (b1 == 'K')) {
+            readZip(in, visitor);
+        } else if ((b0 == 0x1f) && (b1 == 0x8b)) {
+            readTar(new BufferedInputStream(new GZIPInputStream(in, 65536), 65536), visitor);
+        } else {
+            readTar(in, visitor);
+        }
+    }
+
+    /**
+     * Read a zip archive
+     */
+    private static void readZip(InputStream in, Visitor visitor) throws IOException {
+        ZipInputStream zip = new ZipInputStream(in);
+        ZipEntry e;
+        while ((e = zip.getNextEntry()) != null) {
+            if (!e.isDirectory()) {
+                visitor.entry(e.getName(), new EntryStream(zip, Long.MAX_VALUE));
+            }
+            zip.closeEntry();
+        }
+    }
+
+    /**
+     * Read a (POSIX, GNU or PAX) tar archive
+     */
+    private static void readTar(InputStream in, Visitor visitor) throws IOException {
+        byte[] header = new byte[TAR_BLOCK];
+        String longName = null;
+        while (true) {
+
+            // Two empty blocks (or a truncated stream) mark the end of archive
+            if (!readBlock(in, header) || (header[0] == 0)) {
+                return;
+            }
+
+            // Parse header
+            String name = tarString(header, 0, 100);
+            long size = tarOctal(header, 124, 12);
+            char type = (char) header[156];
+            if (tarString(header, 257, 6).startsWith("ustar")) {
+                String prefix = tarString(header, 345, 155);
+                if (!prefix.isEmpty()) {
+                    name = prefix + "/" + name;
+                }
+            }
+            if (longName != null) {
+                name = longName;
+                longName = null;
+            }
+
+            // Handle entry
+            EntryStream contents = new EntryStream(in, size);
+            if (type == 'L') {
+                // GNU long name of the next entry
+                longName = trimNul(readString(contents));
+            } else if (type == 'x') {
+                // PAX extended header of the next entry
+                longName = paxPath(readString(contents));
+            } else if ((type == '0') || (type == '\0') || (type == '7')) {
+                visitor.entry(name, contents);
+            }
+
+            // Skip the rest of the entry and the block padding
+            contents.skipRemaining();
+            long padding = (TAR_BLOCK - (size % TAR_BLOCK)) % TAR_BLOCK;
+            skipFully(in, padding);
+
+        }
+    }
+
+    /**
+     * Read a full tar block
+     * @return Returns FALSE on end of stream
+     */
+    private static boolean readBlock(InputStream in, byte[] block) throws IOException {
+        int ofs = 0;
+        while (ofs < block.length) {
+            int n = in.read(block, ofs, block.length - ofs);
+            if (n < 0) return false;
+            ofs += n;
+        }
+        return true;
+    }
+
+    /**
+     * Skip the given number of bytes
+     */
+    private static void skipFully(InputStream in, long n) throws IOException {
+        while (n > 0) {
+            long k = in.skip(n);
+            if (k <= 0) {
+                if (in.read() < 0) throw new EOFException("Truncated archive");
+                k = 1;
+            }
+            n -= k;
+        }
+    }
+
+    /**
+     * Parse a NUL-terminated string field of a tar header
+     */
+    private static String tarString(byte[] header, int ofs, int len) {
+        int end = ofs;
+        while ((end < ofs + len) && (header[end] != 0)) end++;
+        return new String(header, ofs, end - ofs, UTF8);
+    }
+
+    /**
+     * Parse an octal number field of a tar header
+     */
+    private static long tarOctal(byte[] header, int ofs, int len) {
+        long v = 0;
+        for (int i=ofs; i<ofs+len; i++) {
+            byte b = header[i];
+            if ((b >= '0') && (b <= '7')) {
+                v = (v << 3) + (b - '0');
+            } else if ((b == 0) || ((b == ' ') && (v > 0))) {
+                break;
+            }
+        }
+        return v;
+    }
+
+    /**
+     * Strip trailing NUL characters
+     */
+    private static String trimNul(String s) {
+        int end = s.length();
+        while ((end > 0) && (s.charAt(end-1) == 0)) end--;
+        return s.substring(0, end);
+    }
+
+    /**
+     * Get the 'path' record of a PAX extended header
+     * @return The path or null if not specified
+     */
+    private static String paxPath(String records) {
+        for (String rec: records.split("\n")) {
+            int sp = rec.indexOf(' ');
+            if ((sp > 0) && rec.startsWith("path=", sp+1)) {
+                return rec.substring(sp + 6);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Stream over the contents of a single entry, that never closes the
+     * archive stream.
+     */
+    private static class EntryStream extends FilterInputStream {
+
+        long remaining;
+
+        EntryStream(InputStream in, long size) {
+            super(in);
+            this.remaining = size;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) return -1;
+            int b = in.read();
+            if (b >= 0) remaining--;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) return -1;
+            int n = in.read(b, off, (int) Math.min(len, remaining));
+            if (n > 0) remaining -= n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long k = in.skip(Math.min(n, remaining));
+            if (k > 0) remaining -= k;
+            return k;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(in.available(), remaining);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() {
+            // The archive stream is closed by the reader
+        }
+
+        /**
+         * Skip whatever was not consumed by the visitor
+         */
+        void skipRemaining() throws IOException {
+            if (remaining == Long.MAX_VALUE) return;
+            skipFully(in, remaining);
+            remaining = 0;
+        }
+
+    }
+
+}
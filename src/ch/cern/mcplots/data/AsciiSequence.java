@@ -0,0 +1,82 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package ch.cern.mcplots.data;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Character view of a byte buffer, where every byte is one character.
+ *
+ * The parsers only look for ASCII characters, so they can work directly on
+ * the bytes of a (memory-mapped) file without decoding it first. Strings are
+ * only created, and properly decoded, when toString() is called.
+ *
+ * @author icharala
+ */
+final class AsciiSequence implements CharSequence {
+
+    /**
+     * The underlying bytes
+     */
+    private final ByteBuffer buffer;
+
+    /**
+     * The range of the buffer this sequence covers
+     */
+    private final int offset, length;
+
+    /**
+     * The charset to decode the strings with
+     */
+    private final Charset charset;
+
+    /**
+     * Create a view over the entire (remaining) buffer
+     *
+     * @param buffer The bytes
+     * @param charset The charset to use when creating strings
+     */
+    AsciiSequence(ByteBuffer buffer, Charset charset) {
+        this(buffer, buffer.position(), buffer.remaining(), charset);
+    }
+
+    private AsciiSequence(ByteBuffer buffer, int offset, int length, Charset charset) {
+        this.buffer = buffer;
+        this.offset = offset;
+        this.length = length;
+        this.charset = charset;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        return (char) (buffer.get(offset + index) & 0xff);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        if ((start < 0) || (end > length) || (start > end)) {
+            throw new IndexOutOfBoundsException();
+        }
+        return new AsciiSequence(buffer, offset + start, end - start, charset);
+    }
+
+    @Override
+    public String toString() {
+        byte[] bytes = new byte[length];
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset);
+        view.get(bytes);
+        return new String(bytes, charset);
+    }
+
+}
@@ -0,0 +1,297 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package ch.cern.mcplots.data;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Persistent index of the sources the custom analyses were last built from.
+ *
+ * For every analysis it keeps the Rivet tag it was built against and the
+ * SHA-1 of its source, info, plot and reference data files. An analysis is
+ * stale when it was never built, the tag is different, or the contents of
+ * its files changed since.
+ *
+ * The size and modification time of every file are kept as well, so the
+ * files are only read again (and hashed) when they were touched.
+ *
+ * @author icharala
+ */
+final class BuildIndex {
+
+    /**
+     * Magic number at the beginning of the index file ('MCBI')
+     */
+    private static final int MAGIC = 0x4d434249;
+
+    /**
+     * The version of the format
+     */
+    private static final int VERSION = 1;
+
+    /**
+     * The extensions of the files that affect the build, in hashing order
+     */
+    static final String[] HASHED_EXTENSIONS = new String[] { "aida", "cc", "info", "plot", "yoda" };
+
+    /**
+     * The encoding of the extension names in the hash
+     */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * The state of the files of an analysis
+     */
+    static class Entry {
+
+        /**
+         * The Rivet tag the analysis was built against (or null if not built)
+         */
+        String rivetTag;
+
+        /**
+         * The SHA-1 of the contents of the files
+         */
+        byte[] hash;
+
+        /**
+         * The size and modification time of every file, by extension
+         */
+        final TreeMap<String, long[]> files = new TreeMap<>();
+
+    }
+
+    /**
+     * The file the index is stored in
+     */
+    private final File indexFile;
+
+    /**
+     * The entries by analysis name
+     */
+    private final HashMap<String, Entry> entries;
+
+    /**
+     * TRUE if the entries changed since the index was loaded or saved
+     */
+    private boolean modified;
+
+    /**
+     * Load the index from the given file
+     * @param indexFile The index file (it's fine if it does not exist)
+     */
+    BuildIndex(File indexFile) {
+        this.indexFile = indexFile;
+        this.entries = new HashMap<>();
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+            if ((in.readInt() != MAGIC) || (in.readInt() != VERSION)) {
+                throw new IOException("Invalid build index " + indexFile);
+            }
+            int n = in.readInt();
+            for (int i=0; i<n; i++) {
+                String name = in.readUTF();
+                Entry e = new Entry();
+                e.rivetTag = in.readUTF();
+                e.hash = new byte[in.readUnsignedByte()];
+                in.readFully(e.hash);
+                int numFiles = in.readInt();
+                for (int j=0; j<numFiles; j++) {
+                    e.files.put(in.readUTF(), new long[] { in.readLong(), in.readLong() });
+                }
+                entries.put(name, e);
+            }
+        } catch (FileNotFoundException ex) {
+            // Nothing built yet
+        } catch (IOException ex) {
+            Logger.getLogger(BuildIndex.class.getName()).log(Level.WARNING, null, ex);
+            entries.clear();
+        }
+    }
+
+    /**
+     * Write the index to its file
+     * @throws IOException
+     */
+    void save() throws IOException {
+        File dir = indexFile.getAbsoluteFile().getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create " + dir);
+        }
+
+        // Write to a temporary file and move in place
+        File tmp = new File(dir, indexFile.getName() + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(entries.size());
+                for (Map.Entry<String, Entry> me: entries.entrySet()) {
+                    Entry e = me.getValue();
+                    out.writeUTF(me.getKey());
+                    out.writeUTF(e.rivetTag);
+                    out.writeByte(e.hash.length);
+                    out.write(e.hash);
+                    out.writeInt(e.files.size());
+                    for (Map.Entry<String, long[]> f: e.files.entrySet()) {
+                        out.writeUTF(f.getKey());
+                        out.writeLong(f.getValue()[0]);
+                        out.writeLong(f.getValue()[1]);
+                    }
+                }
+            }
+            try {
+                Files.move(tmp.toPath(), indexFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(tmp.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            modified = false;
+        } finally {
+            Files.deleteIfExists(tmp.toPath());
+        }
+    }
+
+    /**
+     * @return TRUE if the entries changed since the index was loaded or saved
+     */
+    boolean isModified() {
+        return modified;
+    }
+
+    /**
+     * Get the current state of the files of an analysis. The files are only
+     * hashed if they changed since the last build. If they were only touched,
+     * their new size and modification time are kept, so they are not hashed
+     * again next time.
+     *
+     * @param d The analysis
+     * @return The state (without a Rivet tag)
+     * @throws IOException
+     */
+    Entry current(CustomAnalyses.Data d) throws IOException {
+        Entry cur = new Entry();
+        for (String ext: HASHED_EXTENSIONS) {
+            if (d.has(ext)) {
+                File f = d.file(ext);
+                cur.files.put(ext, new long[] { f.length(), f.lastModified() });
+            }
+        }
+
+        // Same files as the last build
+        Entry built = entries.get(d.analysisName);
+        if ((built != null) && sameFiles(built.files, cur.files)) {
+            cur.hash = built.hash;
+            return cur;
+        }
+
+        // Hash the contents
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            byte[] buf = new byte[64 * 1024];
+            for (String ext: cur.files.keySet()) {
+                md.update(ext.getBytes(UTF8));
+                md.update((byte) 0);
+                try (InputStream in = new FileInputStream(d.file(ext))) {
+                    int n;
+                    while ((n = in.read(buf)) > 0) {
+                        md.update(buf, 0, n);
+                    }
+                }
+                md.update((byte) 0);
+            }
+            cur.hash = md.digest();
+        } catch (NoSuchAlgorithmException ex) {
+            // SHA-1 is a mandatory algorithm on every platform
+            throw new IllegalStateException(ex);
+        }
+
+        // Same contents as the last build
+        if ((built != null) && Arrays.equals(built.hash, cur.hash)) {
+            built.files.clear();
+            built.files.putAll(cur.files);
+            modified = true;
+        }
+        return cur;
+    }
+
+    /**
+     * Compare the sizes and modification times of two sets of files
+     */
+    private static boolean sameFiles(TreeMap<String, long[]> a, TreeMap<String, long[]> b) {
+        if (!a.keySet().equals(b.keySet())) return false;
+        for (Map.Entry<String, long[]> e: a.entrySet()) {
+            if (!Arrays.equals(e.getValue(), b.get(e.getKey()))) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Check if an analysis must be built again
+     *
+     * @param d The analysis
+     * @param rivetTag The Rivet tag to build against
+     * @return TRUE if it was never built, or built from something else
+     * @throws IOException
+     */
+    boolean isStale(CustomAnalyses.Data d, String rivetTag) throws IOException {
+        Entry built = entries.get(d.analysisName);
+        if ((built == null) || !built.rivetTag.equals(rivetTag)) return true;
+        return !Arrays.equals(built.hash, current(d).hash);
+    }
+
+    /**
+     * Record that an analysis was built from its current files
+     *
+     * @param d The analysis
+     * @param rivetTag The Rivet tag it was built against
+     * @throws IOException
+     */
+    void built(CustomAnalyses.Data d, String rivetTag) throws IOException {
+        Entry cur = current(d);
+        cur.rivetTag = rivetTag;
+        entries.put(d.analysisName, cur);
+        modified = true;
+    }
+
+    /**
+     * Forget the analyses that do not exist any more
+     * @param names The names of the existing analyses
+     */
+    void retain(Set<String> names) {
+        Iterator<String> it = entries.keySet().iterator();
+        while (it.hasNext()) {
+            if (!names.contains(it.next())) {
+                it.remove();
+                modified = true;
+            }
+        }
+    }
+
+}
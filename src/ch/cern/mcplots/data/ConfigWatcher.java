@@ -0,0 +1,234 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package ch.cern.mcplots.data;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.swing.SwingUtilities;
+
+/**
+ * Monitor of the configuration files, that picks up the modifications made
+ * by other tools while the configuration is open.
+ *
+ * A single daemon thread waits on a WatchService for the events of the
+ * watched folders, so nothing is polled. When rivet-histograms.map changes
+ * it is reloaded with RivetHistograms.reload(), and when files of the custom
+ * analyses folder are created or deleted only those analyses are updated.
+ *
+ * The watched objects are updated on the event dispatch thread, the same
+ * thread the user interface modifies them from, so their listeners are
+ * notified there too and no locking is needed.
+ *
+ * @author icharala
+ */
+public class ConfigWatcher implements Closeable {
+
+    /**
+     * How long to wait for more events before processing them, since editors
+     * tend to write a file in several steps (ms)
+     */
+    private static final long SETTLE_DELAY = 100;
+
+    /**
+     * The OS notification service
+     */
+    private final WatchService service;
+
+    /**
+     * The watched folders by key
+     */
+    private final HashMap<WatchKey, Path> folders;
+
+    /**
+     * The watched histogram files by path
+     */
+    private final HashMap<Path, RivetHistograms> histograms;
+
+    /**
+     * The watched custom analyses by folder
+     */
+    private final HashMap<Path, CustomAnalyses> analyses;
+
+    /**
+     * The thread that waits for the events
+     */
+    private final Thread thread;
+
+    /**
+     * Start a new watcher
+     * @throws IOException
+     */
+    public ConfigWatcher() throws IOException {
+        service = FileSystems.getDefault().newWatchService();
+        folders = new HashMap<>();
+        histograms = new HashMap<>();
+        analyses = new HashMap<>();
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                processEvents();
+            }
+        }, "ConfigWatcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Reload the given histograms when their file is modified
+     * @param h The histograms (must be loaded from a file)
+     * @throws IOException
+     */
+    public synchronized void watch(RivetHistograms h) throws IOException {
+        Path file = h.getConfigFile().toPath().toAbsolutePath();
+        register(file.getParent());
+        histograms.put(file, h);
+    }
+
+    /**
+     * Update the given analyses when files are added to or removed from
+     * their folder
+     * @param a The custom analyses
+     * @throws IOException
+     */
+    public synchronized void watch(CustomAnalyses a) throws IOException {
+        Path folder = a.getFolder().toPath().toAbsolutePath();
+        register(folder);
+        analyses.put(folder, a);
+    }
+
+    /**
+     * Start watching a folder, if not watched already
+     */
+    private void register(Path folder) throws IOException {
+        if (folders.containsValue(folder)) return;
+        WatchKey key = folder.register(service,
+                StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_DELETE,
+                StandardWatchEventKinds.ENTRY_MODIFY);
+        folders.put(key, folder);
+    }
+
+    /**
+     * Stop watching
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        service.close();
+        thread.interrupt();
+    }
+
+    /**
+     * Wait for events, until closed
+     */
+    private void processEvents() {
+        try {
+            while (true) {
+
+                // Collect the events until things settle down
+                final LinkedHashSet<Path> changed = new LinkedHashSet<>();
+                final LinkedHashSet<Path> overflowed = new LinkedHashSet<>();
+                WatchKey key = service.take();
+                while (key != null) {
+                    collect(key, changed, overflowed);
+                    key = service.poll(SETTLE_DELAY, TimeUnit.MILLISECONDS);
+                }
+
+                SwingUtilities.invokeLater(new Runnable() {
+                    @Override
+                    public void run() {
+                        dispatch(changed, overflowed);
+                    }
+                });
+
+            }
+        } catch (InterruptedException | ClosedWatchServiceException ex) {
+            // Closed
+        }
+    }
+
+    /**
+     * Collect the paths of the events of a key
+     * @param key The signalled key
+     * @param changed The paths that were created, deleted or modified
+     * @param overflowed The folders that lost events
+     */
+    private synchronized void collect(WatchKey key, LinkedHashSet<Path> changed, LinkedHashSet<Path> overflowed) {
+        Path folder = folders.get(key);
+        for (WatchEvent<?> e: key.pollEvents()) {
+            if (folder == null) continue;
+            if (e.kind() == StandardWatchEventKinds.OVERFLOW) {
+                overflowed.add(folder);
+            } else {
+                changed.add(folder.resolve((Path) e.context()));
+            }
+        }
+        if (!key.reset()) {
+            folders.remove(key);
+        }
+    }
+
+    /**
+     * Update the watched objects affected by the changed paths (on the
+     * event dispatch thread)
+     */
+    private void dispatch(LinkedHashSet<Path> changed, LinkedHashSet<Path> overflowed) {
+        HashMap<Path, RivetHistograms> hs;
+        HashMap<Path, CustomAnalyses> as;
+        synchronized (this) {
+            hs = new HashMap<>(histograms);
+            as = new HashMap<>(analyses);
+        }
+
+        // Lost events; check everything in these folders
+        for (Path folder: overflowed) {
+            for (Map.Entry<Path, RivetHistograms> e: hs.entrySet()) {
+                if (folder.equals(e.getKey().getParent())) {
+                    changed.add(e.getKey());
+                }
+            }
+            CustomAnalyses a = as.get(folder);
+            if (a != null) {
+                a.rescan();
+            }
+        }
+
+        for (Path p: changed) {
+
+            // Modified histograms
+            RivetHistograms h = hs.get(p);
+            if ((h != null) && p.toFile().isFile()) {
+                try {
+                    h.reload();
+                } catch (IOException ex) {
+                    Logger.getLogger(ConfigWatcher.class.getName()).log(Level.WARNING, "Unable to reload " + p, ex);
+                }
+            }
+
+            // Added or removed analyses
+            CustomAnalyses a = overflowed.contains(p.getParent()) ? null : as.get(p.getParent());
+            if (a != null) {
+                a.fileChanged(p.getFileName().toString());
+            }
+
+        }
+    }
+
+}
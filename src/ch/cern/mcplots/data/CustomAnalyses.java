@@ -7,7 +7,21 @@
 package ch.cern.mcplots.data;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  *
@@ -32,6 +46,12 @@ public class CustomAnalyses {
          */
         private final String baseName;
         
+        /**
+         * The extensions of the files of this analysis. The set is never
+         * modified, but replaced, so it can be read from any thread.
+         */
+        private volatile Set<String> extensions;
+        
         /**
          * Check if the given extension exists for this analysis
          * 
@@ -39,8 +59,23 @@ public class CustomAnalyses {
          * @return Returns TRUE if such file exists
          */
         Boolean has(String extension) {
-            File f = new File(baseName + "." + extension);
-            return f.exists();
+            return extensions.contains(extension);
+        }
+        
+        /**
+         * Get the file of this analysis with the given extension
+         * @param extension The filename extension
+         * @return The file (that may not exist)
+         */
+        File file(String extension) {
+            return new File(baseName + "." + extension);
+        }
+        
+        /**
+         * @return The extensions of the files of this analysis
+         */
+        public Set<String> getExtensions() {
+            return extensions;
         }
 
         /**
@@ -51,15 +86,62 @@ public class CustomAnalyses {
         public Data(String analysisName, String baseName) {
             this.analysisName = analysisName;
             this.baseName = baseName;
+            this.extensions = Collections.emptySet();
+        }
+        
+        /**
+         * Add or remove an extension
+         * @return TRUE if the set of extensions changed
+         */
+        private boolean setExtension(String extension, boolean exists) {
+            if (extensions.contains(extension) == exists) return false;
+            HashSet<String> ext = new HashSet<>(extensions);
+            if (exists) {
+                ext.add(extension);
+            } else {
+                ext.remove(extension);
+            }
+            extensions = Collections.unmodifiableSet(ext);
+            return true;
         }
         
     }
     
+    /**
+     * Receiver of the analyses added to or removed from the folder
+     */
+    public static interface ChangeListener {
+        
+        public void analysisAdded( CustomAnalyses analyses, Data analysis );
+        public void analysisRemoved( CustomAnalyses analyses, Data analysis );
+        
+        /**
+         * Files of an existing analysis were added or removed
+         */
+        public void analysisChanged( CustomAnalyses analyses, Data analysis );
+        
+    }
+    
     /**
      * Map of data entries indexed by the analysis name
      */
     HashMap<String, Data> analyses;
     
+    /**
+     * The receivers of the modifications
+     */
+    private final ArrayList<ChangeListener> listeners = new ArrayList<>();
+    
+    /**
+     * The file with the state of the last build of the analyses
+     */
+    private File buildIndexFile;
+    
+    /**
+     * The state of the last build (loaded on demand)
+     */
+    private BuildIndex buildIndex;
+    
     /**
      * Initialize custom analysis class
      * @param analysisFolder The full path to the folder to use for custom analysis
@@ -69,29 +151,229 @@ public class CustomAnalyses {
         this.analysisFolder = new File(analysisFolder);
         this.analyses = new HashMap<>();
         
+        // Keep the build index in the cache, not in the folder
+        String key = TracCache.key(this.analysisFolder.getAbsoluteFile().toURI().toString(), "", "");
+        this.buildIndexFile = new File(TracCache.getDefaultDirectory(), key + ".build");
+        
         // Scan alayses in folder & populate analyses array
-        File[] files = this.analysisFolder.listFiles();
-        for (File f: files) {
-            if (f.isFile()) {
-                
-                // Get filename
-                String n = f.getName();
-                
-                // get extension
-                String[] parts = n.split("\\.");
-                String ext = parts[parts.length-1];
-                
-                // Strip extension
-                n = n.substring(0, n.length()-ext.length()-1);
+        for (Map.Entry<String, Set<String>> e: scan().entrySet()) {
+            analyses.put(e.getKey(), newData(this.analysisFolder, e.getKey(), e.getValue()));
+        }
+        
+    }
+    
+    /**
+     * List the folder in a single pass, and collect the extensions of the
+     * files of every analysis.
+     * 
+     * @return The extensions by analysis name
+     */
+    private HashMap<String, Set<String>> scan() {
+        HashMap<String, Set<String>> found = new HashMap<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(analysisFolder.toPath())) {
+            for (Path f: files) {
+                String fileName = f.getFileName().toString();
+                String n = analysisOf(fileName);
+                if ((n == null) || !Files.isRegularFile(f)) continue;
                 
-                // Create entry
-                if (!analyses.containsKey(n)) {
-                    File subPath = new File(this.analysisFolder, n);
-                    analyses.put(n, new Data(n, subPath.getPath()) );
+                Set<String> ext = found.get(n);
+                if (ext == null) {
+                    ext = new HashSet<>();
+                    found.put(n, ext);
+                }
+                ext.add(fileName.substring(n.length()+1));
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(CustomAnalyses.class.getName()).log(Level.WARNING, "Unable to list " + analysisFolder, ex);
+        }
+        return found;
+    }
+    
+    /**
+     * Create the entry of an analysis with the given extensions
+     * @param folder The folder of the files of the analysis
+     * @param n The name of the analysis
+     * @param extensions The extensions of its files
+     * @return The new entry
+     */
+    static Data newData(File folder, String n, Set<String> extensions) {
+        Data d = new Data(n, new File(folder, n).getPath());
+        d.extensions = Collections.unmodifiableSet(extensions);
+        return d;
+    }
+    
+    /**
+     * @return The folder of the custom analyses
+     */
+    public File getFolder() {
+        return analysisFolder;
+    }
+    
+    /**
+     * Register a receiver of the modifications
+     * @param l The listener
+     */
+    public void addChangeListener(ChangeListener l) {
+        listeners.add(l);
+    }
+    
+    /**
+     * Unregister a receiver of the modifications
+     * @param l The listener
+     */
+    public void removeChangeListener(ChangeListener l) {
+        listeners.remove(l);
+    }
+    
+    /**
+     * Get the analysis name of a file in the folder
+     * @param fileName The name of the file
+     * @return The name without the extension, or null if it has no extension
+     */
+    static String analysisOf(String fileName) {
+        int dot = fileName.lastIndexOf('.');
+        return (dot > 0) ? fileName.substring(0, dot) : null;
+    }
+    
+    /**
+     * Update the analyses after a file of the folder was created or deleted
+     * (ex. by another tool), without scanning the entire folder.
+     * 
+     * @param fileName The name of the file in the folder
+     */
+    public synchronized void fileChanged(String fileName) {
+        String n = analysisOf(fileName);
+        if (n == null) return;
+        String ext = fileName.substring(n.length()+1);
+        boolean exists = new File(analysisFolder, fileName).isFile();
+        
+        Data d = analyses.get(n);
+        if (d == null) {
+            
+            // A new analysis appeared
+            if (exists) {
+                d = newData(analysisFolder, n, new HashSet<>(Collections.singleton(ext)));
+                analyses.put(n, d);
+                for (ChangeListener l: listeners) {
+                    l.analysisAdded(this, d);
+                }
+            }
+            
+        } else if (d.setExtension(ext, exists)) {
+            
+            // The analysis is gone when it has no files left
+            if (d.extensions.isEmpty()) {
+                analyses.remove(n);
+                for (ChangeListener l: listeners) {
+                    l.analysisRemoved(this, d);
+                }
+            } else {
+                for (ChangeListener l: listeners) {
+                    l.analysisChanged(this, d);
+                }
+            }
+            
+        }
+    }
+    
+    /**
+     * Scan the folder again, and update the analyses that were added,
+     * removed or changed since.
+     */
+    public synchronized void rescan() {
+        HashMap<String, Set<String>> found = scan();
+        
+        // Removed analyses
+        for (String n: new ArrayList<>(analyses.keySet())) {
+            if (!found.containsKey(n)) {
+                Data d = analyses.remove(n);
+                for (ChangeListener l: listeners) {
+                    l.analysisRemoved(this, d);
                 }
             }
         }
         
+        // Added or changed analyses
+        for (Map.Entry<String, Set<String>> e: found.entrySet()) {
+            Data d = analyses.get(e.getKey());
+            if (d == null) {
+                d = newData(analysisFolder, e.getKey(), e.getValue());
+                analyses.put(e.getKey(), d);
+                for (ChangeListener l: listeners) {
+                    l.analysisAdded(this, d);
+                }
+            } else if (!d.extensions.equals(e.getValue())) {
+                d.extensions = Collections.unmodifiableSet(e.getValue());
+                for (ChangeListener l: listeners) {
+                    l.analysisChanged(this, d);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Select where the state of the last build of the analyses is kept
+     * @param file The index file
+     */
+    public synchronized void setBuildIndexFile(File file) {
+        buildIndexFile = file;
+        buildIndex = null;
+    }
+    
+    /**
+     * @return The build index, loaded on first use
+     */
+    private BuildIndex getBuildIndex() {
+        if (buildIndex == null) {
+            buildIndex = new BuildIndex(buildIndexFile);
+        }
+        return buildIndex;
+    }
+    
+    /**
+     * Find the analyses that must be built again, because they were never
+     * built, were built against another Rivet tag, or the contents of their
+     * source, info, plot or reference data files changed since.
+     * 
+     * @param rivetTag The Rivet tag to build against
+     * @return The stale analyses, sorted by name
+     * @throws IOException 
+     */
+    public synchronized List<Data> getStaleAnalyses(String rivetTag) throws IOException {
+        BuildIndex index = getBuildIndex();
+        ArrayList<Data> stale = new ArrayList<>();
+        for (Data d: new TreeMap<>(analyses).values()) {
+            if (index.isStale(d, rivetTag)) {
+                stale.add(d);
+            }
+        }
+        
+        // Keep the refreshed times of the touched files
+        if (index.isModified()) {
+            try {
+                index.save();
+            } catch (IOException ex) {
+                Logger.getLogger(CustomAnalyses.class.getName()).log(Level.WARNING, "Unable to update the build index", ex);
+            }
+        }
+        return stale;
+    }
+    
+    /**
+     * Record that the given analyses were successfully built from their
+     * current files, so they are not reported as stale until they change.
+     * 
+     * @param built The analyses that were built
+     * @param rivetTag The Rivet tag they were built against
+     * @throws IOException 
+     */
+    public synchronized void markBuilt(Collection<Data> built, String rivetTag) throws IOException {
+        BuildIndex index = getBuildIndex();
+        for (Data d: built) {
+            index.built(d, rivetTag);
+        }
+        index.retain(analyses.keySet());
+        index.save();
     }
     
 }
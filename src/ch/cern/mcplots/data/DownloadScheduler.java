@@ -0,0 +1,407 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package ch.cern.mcplots.data;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Scheduler of many downloads from the same host.
+ *
+ * The number of requests in flight is adjusted with AIMD: it grows by one
+ * for every window of fast, successful requests, and is halved when a
+ * request fails or takes much longer than the fastest ones. Downloads that
+ * fail with an IOException are retried with exponential backoff and jitter.
+ *
+ * Every scheduler has a circuit breaker for its host: after several
+ * failures in a row no more requests are sent to the host for a while,
+ * and then a single request probes if it's back.
+ *
+ * @author icharala
+ */
+public class DownloadScheduler {
+
+    /**
+     * Receiver of the outcome of every download
+     */
+    public static interface Listener<T> {
+
+        /**
+         * A download completed
+         * @param index The index of the download
+         * @param result The result of the download
+         * @param nanos The duration of the successful attempt
+         */
+        public void completed( int index, T result, long nanos );
+
+        /**
+         * A download failed for good
+         * @param index The index of the download
+         * @param ex The error of the last attempt
+         * @param nanos The duration of the last attempt
+         */
+        public void failed( int index, Exception ex, long nanos );
+
+    }
+
+    /**
+     * The number of attempts of every download
+     */
+    public static final int MAX_ATTEMPTS = 5;
+
+    /**
+     * The initial number of requests in flight
+     */
+    private static final int INITIAL_LIMIT = 4;
+
+    /**
+     * A request slower than this many times the fastest one is a sign of
+     * congestion
+     */
+    private static final int LATENCY_TOLERANCE = 4;
+
+    /**
+     * Latencies below this are never a sign of congestion (in nanoseconds)
+     */
+    private static final long MIN_CONGESTED_LATENCY = TimeUnit.MILLISECONDS.toNanos(250);
+
+    /**
+     * The backoff before the first retry, doubled on every retry (in milliseconds)
+     */
+    private static final long BASE_BACKOFF = 250;
+
+    /**
+     * The maximum backoff between retries (in milliseconds)
+     */
+    private static final long MAX_BACKOFF = 8000;
+
+    /**
+     * The number of failures in a row that trip the circuit breaker
+     */
+    private static final int BREAKER_THRESHOLD = 5;
+
+    /**
+     * The time the breaker stays open the first time, doubled every time
+     * the probe fails (in milliseconds)
+     */
+    private static final long BREAKER_COOLDOWN = 5000;
+
+    /**
+     * The maximum time the breaker stays open (in milliseconds)
+     */
+    private static final long MAX_BREAKER_COOLDOWN = 60000;
+
+    /**
+     * Circuit breaker of a host
+     */
+    private static class CircuitBreaker {
+
+        final String host;
+        int failures = 0;
+        boolean open = false;
+        boolean probing = false;
+        long openUntil = 0;
+        long cooldown = BREAKER_COOLDOWN;
+
+        CircuitBreaker(String host) {
+            this.host = host;
+        }
+
+        /**
+         * @return The time to wait before sending a request (in milliseconds)
+         */
+        synchronized long delay(long now) {
+            if (!open) return 0;
+            if (now - openUntil < 0) return TimeUnit.NANOSECONDS.toMillis(openUntil - now) + 1;
+
+            // Half-open: let a single request through
+            return probing ? BASE_BACKOFF : 0;
+        }
+
+        synchronized void sent() {
+            if (open) probing = true;
+        }
+
+        synchronized void succeeded() {
+            failures = 0;
+            if (open) {
+                Logger.getLogger(DownloadScheduler.class.getName()).log(Level.INFO, "Host {0} is back", host);
+            }
+            open = false;
+            probing = false;
+            cooldown = BREAKER_COOLDOWN;
+        }
+
+        /**
+         * A request ended with an error that says nothing about the host
+         * (ex. an invalid response); a new probe is sent if needed
+         */
+        synchronized void ended() {
+            probing = false;
+        }
+
+        synchronized void failed(long now) {
+            failures++;
+            if (open) {
+                // The probe failed
+                if (!probing) return;
+                probing = false;
+                cooldown = Math.min(cooldown * 2, MAX_BREAKER_COOLDOWN);
+            } else if (failures < BREAKER_THRESHOLD) {
+                return;
+            }
+            open = true;
+            openUntil = now + TimeUnit.MILLISECONDS.toNanos(cooldown);
+            Logger.getLogger(DownloadScheduler.class.getName()).log(Level.WARNING, "Host {0} is failing, pausing requests for {1,number,#} ms", new Object[]{ host, cooldown });
+        }
+
+    }
+
+    /**
+     * An attempt of a download
+     */
+    private static class Attempt implements Comparable<Attempt> {
+
+        final int index;
+        int attempt = 0;
+        long due;
+        long sent;
+
+        Attempt(int index, long due) {
+            this.index = index;
+            this.due = due;
+        }
+
+        @Override
+        public int compareTo(Attempt o) {
+            long d = due - o.due;
+            return (d < 0) ? -1 : ((d > 0) ? 1 : Integer.compare(index, o.index));
+        }
+
+    }
+
+    /**
+     * The circuit breaker of the host (guarded by itself)
+     */
+    private final CircuitBreaker breaker;
+
+    /**
+     * The maximum number of requests in flight
+     */
+    private final int maxLimit;
+
+    /**
+     * The random jitter of the backoff
+     */
+    private final Random random = new Random();
+
+    /**
+     * The state of the downloads, guarded by the scheduler
+     */
+    private double limit;
+    private int inFlight;
+    private int remaining;
+    private long minLatency = Long.MAX_VALUE;
+    private long lastDecrease;
+    private int retries;
+    private final PriorityQueue<Attempt> queue = new PriorityQueue<>();
+
+    /**
+     * Create a scheduler of downloads from the given host
+     * @param host The host (or any other name of the server)
+     * @param maxLimit The maximum number of requests in flight
+     */
+    public DownloadScheduler(String host, int maxLimit) {
+        this.breaker = new CircuitBreaker(host);
+        this.maxLimit = Math.max(1, maxLimit);
+        this.limit = Math.min(INITIAL_LIMIT, this.maxLimit);
+    }
+
+    /**
+     * @return The number of requests in flight the scheduler settled to
+     */
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    /**
+     * @return The number of retries of the last run
+     */
+    public synchronized int getRetries() {
+        return retries;
+    }
+
+    /**
+     * Run all the downloads and wait for them to complete.
+     *
+     * A download that throws IOException is retried, up to MAX_ATTEMPTS
+     * times; any other exception fails it at once. The listener is called
+     * from the worker threads, and all its calls have returned when this
+     * method returns.
+     *
+     * @param downloads The downloads
+     * @param listener The receiver of the outcome of every download
+     * @throws InterruptedException
+     */
+    public <T> void runAll(final List<? extends Callable<T>> downloads, final Listener<T> listener) throws InterruptedException {
+        boolean done = false;
+        ExecutorService pool = Executors.newFixedThreadPool(maxLimit, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "DownloadScheduler");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        try {
+            synchronized (this) {
+                long start = System.nanoTime();
+                retries = 0;
+                inFlight = 0;
+                lastDecrease = start;
+                remaining = downloads.size();
+                queue.clear();
+                for (int i=0; i<downloads.size(); i++) {
+                    queue.add(new Attempt(i, start));
+                }
+
+                // Dispatch the attempts that are due, while there is room
+                while (remaining > 0) {
+                    long now = System.nanoTime();
+                    if (inFlight >= (int) limit) {
+                        wait();
+                        continue;
+                    }
+                    long delay = breaker.delay(now);
+                    if (delay > 0) {
+                        wait(delay);
+                        continue;
+                    }
+                    Attempt a = queue.peek();
+                    if (a == null) {
+                        wait();
+                        continue;
+                    }
+                    if (a.due - now > 0) {
+                        wait(TimeUnit.NANOSECONDS.toMillis(a.due - now) + 1);
+                        continue;
+                    }
+
+                    queue.poll();
+                    inFlight++;
+                    a.sent = now;
+                    breaker.sent();
+                    final Attempt attempt = a;
+                    pool.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            execute(attempt, downloads.get(attempt.index), listener);
+                        }
+                    });
+                }
+            }
+            done = true;
+        } finally {
+            // Every listener returned already, unless interrupted
+            if (done) {
+                pool.shutdown();
+            } else {
+                pool.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * Run an attempt of a download, in a worker thread
+     */
+    private <T> void execute(Attempt a, Callable<T> download, Listener<T> listener) {
+        T result = null;
+        Exception error = null;
+        try {
+            result = download.call();
+        } catch (Exception ex) {
+            error = ex;
+        }
+        long now = System.nanoTime();
+        long nanos = now - a.sent;
+
+        // Retry the downloads that may succeed later
+        boolean retry = false;
+        synchronized (this) {
+            inFlight--;
+            if (error == null) {
+                breaker.succeeded();
+                succeeded(a.sent, now);
+            } else if (error instanceof IOException) {
+                breaker.failed(now);
+                decrease(a.sent, now);
+                retry = (a.attempt + 1 < MAX_ATTEMPTS);
+                if (retry) {
+                    long backoff = Math.min(BASE_BACKOFF << a.attempt, MAX_BACKOFF);
+                    a.attempt++;
+                    a.due = now + TimeUnit.MILLISECONDS.toNanos(backoff / 2 + (long) (random.nextDouble() * backoff / 2));
+                    queue.add(a);
+                    retries++;
+                }
+            } else {
+                breaker.ended();
+            }
+            notifyAll();
+        }
+        if (retry) return;
+
+        // The download is only done after its outcome was delivered
+        try {
+            if (error == null) {
+                listener.completed(a.index, result, nanos);
+            } else {
+                listener.failed(a.index, error, nanos);
+            }
+        } finally {
+            synchronized (this) {
+                remaining--;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Grow the window after a fast successful request, or shrink it after
+     * a slow one (guarded)
+     */
+    private void succeeded(long sent, long now) {
+        long nanos = now - sent;
+        minLatency = Math.min(minLatency, nanos);
+        if ((nanos > MIN_CONGESTED_LATENCY) && (nanos > minLatency * LATENCY_TOLERANCE)) {
+            decrease(sent, now);
+        } else {
+            limit = Math.min(maxLimit, limit + 1.0 / limit);
+        }
+    }
+
+    /**
+     * Halve the window after a sign of congestion, only once for all the
+     * requests that were in flight together (guarded)
+     */
+    private void decrease(long sent, long now) {
+        if (sent - lastDecrease >= 0) {
+            limit = Math.max(1, limit / 2);
+            lastDecrease = now;
+        }
+    }
+
+}
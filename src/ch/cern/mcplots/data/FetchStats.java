@@ -0,0 +1,120 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package ch.cern.mcplots.data;
+
+import java.util.Arrays;
+
+/**
+ * Throughput and latency statistics of a bulk download
+ *
+ * @author icharala
+ */
+public class FetchStats {
+
+    /**
+     * The latencies of the completed requests (in nanoseconds)
+     */
+    private long[] latencies;
+
+    /**
+     * The number of completed requests
+     */
+    private int count;
+
+    /**
+     * The number of failed requests
+     */
+    private int failures;
+
+    /**
+     * The time the bulk download started and completed
+     */
+    private long startTime, endTime;
+
+    /**
+     * Initialize the statistics
+     * @param expected The expected number of requests
+     */
+    public FetchStats(int expected) {
+        latencies = new long[Math.max(16, expected)];
+        count = 0;
+        failures = 0;
+        startTime = System.nanoTime();
+        endTime = 0;
+    }
+
+    /**
+     * Record the completion of a request
+     * @param nanos The latency of the request (in nanoseconds)
+     * @param failed TRUE if the request has failed
+     */
+    public synchronized void record(long nanos, boolean failed) {
+        if (count == latencies.length) {
+            latencies = Arrays.copyOf(latencies, count * 2);
+        }
+        latencies[count++] = nanos;
+        if (failed) failures++;
+    }
+
+    /**
+     * Mark the end of the bulk download
+     */
+    public synchronized void finish() {
+        endTime = System.nanoTime();
+    }
+
+    /**
+     * @return The number of completed requests
+     */
+    public synchronized int getCount() {
+        return count;
+    }
+
+    /**
+     * @return The number of failed requests
+     */
+    public synchronized int getFailures() {
+        return failures;
+    }
+
+    /**
+     * @return The elapsed time (in milliseconds)
+     */
+    public synchronized double getElapsedMillis() {
+        long end = (endTime == 0) ? System.nanoTime() : endTime;
+        return (end - startTime) / 1e6;
+    }
+
+    /**
+     * @return The number of completed requests per second
+     */
+    public synchronized double getThroughput() {
+        double seconds = getElapsedMillis() / 1e3;
+        return (seconds > 0) ? count / seconds : 0;
+    }
+
+    /**
+     * Return the latency percentile
+     * @param p The percentile (0-100)
+     * @return The latency (in milliseconds)
+     */
+    public synchronized double getPercentile(double p) {
+        if (count == 0) return 0;
+        long[] sorted = Arrays.copyOf(latencies, count);
+        Arrays.sort(sorted);
+        int i = (int) Math.ceil(p / 100.0 * count) - 1;
+        return sorted[Math.min(count-1, Math.max(0, i))] / 1e6;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%d requests (%d failed) in %.0f ms, %.1f req/s, latency p50=%.1f ms p90=%.1f ms p99=%.1f ms max=%.1f ms",
+                count, failures, getElapsedMillis(), getThroughput(),
+                getPercentile(50), getPercentile(90), getPercentile(99), getPercentile(100));
+    }
+
+}
@@ -0,0 +1,349 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package ch.cern.mcplots.data;
+
+import ch.cern.mcplots.data.RivetHistograms.Column;
+import ch.cern.mcplots.data.RivetHistograms.Data;
+import ch.cern.mcplots.data.RivetHistograms.DataGroup;
+import ch.cern.mcplots.data.RivetHistograms.DataParams;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Columnar, dictionary-encoded store of the rivet-histograms.map entries.
+ *
+ * Every column is kept as an int[] of codes into a string table of the
+ * distinct values of that column, and the enabled flags in a BitSet. Rows
+ * are accessed through lightweight Row views.
+ *
+ * @author icharala
+ */
+public class HistogramColumns {
+
+    /**
+     * Table of the distinct values of a column
+     */
+    public static class StringTable {
+
+        private final HashMap<String, Integer> codes;
+        private final ArrayList<String> values;
+
+        StringTable() {
+            codes = new HashMap<>();
+            values = new ArrayList<>();
+        }
+
+        /**
+         * Get the code of the given value, adding it if missing
+         */
+        int encode(String value) {
+            Integer code = codes.get(value);
+            if (code == null) {
+                code = values.size();
+                codes.put(value, code);
+                values.add(value);
+            }
+            return code;
+        }
+
+        /**
+         * Get the code of the given value
+         * @param value The value to look-up
+         * @return The code or -1 if the value does not exist
+         */
+        public int codeOf(String value) {
+            Integer code = codes.get(value);
+            return (code == null) ? -1 : code;
+        }
+
+        /**
+         * Get the value of the given code
+         * @param code The code
+         * @return The value
+         */
+        public String valueOf(int code) {
+            return values.get(code);
+        }
+
+        /**
+         * @return The number of distinct values
+         */
+        public int size() {
+            return values.size();
+        }
+
+    }
+
+    /**
+     * Flyweight view of a single row
+     */
+    public class Row {
+
+        private int index;
+
+        Row(int index) {
+            this.index = index;
+        }
+
+        /**
+         * Point this view to another row, to iterate without allocations
+         * @param index The row index
+         * @return This view
+         */
+        public Row moveTo(int index) {
+            this.index = index;
+            return this;
+        }
+
+        public int index() { return index; }
+        public String get(Column c) { return HistogramColumns.this.get(index, c); }
+        public String beam() { return get(Column.BEAM); }
+        public String process() { return get(Column.PROCESS); }
+        public String energy() { return get(Column.ENERGY); }
+        public String params() { return get(Column.PARAMS); }
+        public String analysis() { return get(Column.ANALYSIS); }
+        public String histogram() { return get(Column.HISTOGRAM); }
+        public String observable() { return get(Column.OBSERVABLE); }
+        public String cuts() { return get(Column.CUTS); }
+        public boolean isEnabled() { return enabled.get(index); }
+        public int group() { return groups[index]; }
+
+    }
+
+    /**
+     * The number of columns
+     */
+    private static final int NUM_COLUMNS = Column.values().length;
+
+    /**
+     * The dictionary of every column
+     */
+    private final StringTable[] dictionaries;
+
+    /**
+     * The codes of every column
+     */
+    private final int[][] codes;
+
+    /**
+     * The index of the group of every row
+     */
+    private int[] groups;
+
+    /**
+     * The enabled flag of every row
+     */
+    private final BitSet enabled;
+
+    /**
+     * The comments of the groups
+     */
+    private final ArrayList<String> groupComments;
+
+    /**
+     * The number of rows
+     */
+    private int size;
+
+    /**
+     * Create an empty store
+     * @param capacity The expected number of rows
+     */
+    public HistogramColumns(int capacity) {
+        capacity = Math.max(16, capacity);
+        dictionaries = new StringTable[NUM_COLUMNS];
+        codes = new int[NUM_COLUMNS][];
+        for (int c=0; c<NUM_COLUMNS; c++) {
+            dictionaries[c] = new StringTable();
+            codes[c] = new int[capacity];
+        }
+        groups = new int[capacity];
+        enabled = new BitSet(capacity);
+        groupComments = new ArrayList<>();
+        size = 0;
+    }
+
+    /**
+     * Create a store with the entries of the given data groups
+     * @param dataGroups The data groups
+     */
+    public HistogramColumns(List<DataGroup> dataGroups) {
+        this(countRows(dataGroups));
+        for (DataGroup g: dataGroups) {
+            int group = addGroup(g.comment);
+            for (Data d: g.values) {
+                add(group, d);
+            }
+        }
+    }
+
+    private static int countRows(List<DataGroup> dataGroups) {
+        int n = 0;
+        for (DataGroup g: dataGroups) n += g.values.size();
+        return n;
+    }
+
+    /**
+     * Add a new group
+     * @param comment The comment of the group
+     * @return The index of the group
+     */
+    public int addGroup(String comment) {
+        groupComments.add(comment);
+        return groupComments.size() - 1;
+    }
+
+    /**
+     * Append a row
+     * @param group The index of the group to add it to
+     * @param d The data entry
+     * @return The index of the row
+     */
+    public int add(int group, Data d) {
+        if (size == groups.length) {
+            int capacity = size * 2;
+            for (int c=0; c<NUM_COLUMNS; c++) {
+                codes[c] = Arrays.copyOf(codes[c], capacity);
+            }
+            groups = Arrays.copyOf(groups, capacity);
+        }
+        for (Column c: Column.values()) {
+            codes[c.ordinal()][size] = dictionaries[c.ordinal()].encode(c.of(d));
+        }
+        groups[size] = group;
+        enabled.set(size, d.enabled);
+        return size++;
+    }
+
+    /**
+     * @return The number of rows
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return The number of groups
+     */
+    public int groupCount() {
+        return groupComments.size();
+    }
+
+    /**
+     * Get the comment of a group
+     * @param group The index of the group
+     * @return The comment
+     */
+    public String groupComment(int group) {
+        return groupComments.get(group);
+    }
+
+    /**
+     * Get the dictionary of a column
+     * @param c The column
+     * @return The string table of the column
+     */
+    public StringTable dictionary(Column c) {
+        return dictionaries[c.ordinal()];
+    }
+
+    /**
+     * Get the code of a cell
+     * @param row The row index
+     * @param c The column
+     * @return The code in the dictionary of the column
+     */
+    public int code(int row, Column c) {
+        return codes[c.ordinal()][row];
+    }
+
+    /**
+     * Get the value of a cell
+     * @param row The row index
+     * @param c The column
+     * @return The value
+     */
+    public String get(int row, Column c) {
+        return dictionaries[c.ordinal()].valueOf(codes[c.ordinal()][row]);
+    }
+
+    /**
+     * Get a view of a row
+     * @param index The row index
+     * @return The row view
+     */
+    public Row row(int index) {
+        return new Row(index);
+    }
+
+    /**
+     * Check if a row is enabled
+     * @param row The row index
+     * @return TRUE if enabled
+     */
+    public boolean isEnabled(int row) {
+        return enabled.get(row);
+    }
+
+    /**
+     * Enable or disable a row
+     * @param row The row index
+     * @param value The new state
+     */
+    public void setEnabled(int row, boolean value) {
+        enabled.set(row, value);
+    }
+
+    /**
+     * Find all rows with the given value in a column, with a sequential
+     * scan over the codes of the column.
+     *
+     * @param c The column
+     * @param value The value to look for
+     * @return The set of matching rows
+     */
+    public BitSet select(Column c, String value) {
+        BitSet ans = new BitSet(size);
+        int code = dictionaries[c.ordinal()].codeOf(value);
+        if (code < 0) return ans;
+        int[] col = codes[c.ordinal()];
+        for (int i=0; i<size; i++) {
+            if (col[i] == code) ans.set(i);
+        }
+        return ans;
+    }
+
+    /**
+     * @return The set of enabled rows
+     */
+    public BitSet enabledRows() {
+        return (BitSet) enabled.clone();
+    }
+
+    /**
+     * Build a data entry with the contents of a row
+     * @param row The row index
+     * @return A new data entry
+     */
+    public Data toData(int row) {
+        return new Data(
+                enabled.get(row),
+                get(row, Column.BEAM),
+                get(row, Column.PROCESS),
+                get(row, Column.ENERGY),
+                new DataParams(get(row, Column.PARAMS)),
+                get(row, Column.ANALYSIS),
+                get(row, Column.HISTOGRAM),
+                get(row, Column.OBSERVABLE),
+                get(row, Column.CUTS)
+        );
+    }
+
+}
@@ -0,0 +1,373 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package ch.cern.mcplots.data;
+
+import ch.cern.mcplots.data.RivetHistograms.Column;
+import ch.cern.mcplots.data.RivetHistograms.Data;
+import ch.cern.mcplots.data.RivetHistograms.DataGroup;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * Secondary indexes over the entries of RivetHistograms.
+ *
+ * Every entry gets a row ID, and every column keeps a hash index and a
+ * sorted index from value to the set of row IDs with that value. Queries
+ * intersect these sets, so they never scan the data groups.
+ *
+ * The index is kept up to date by registering it as a change listener of
+ * RivetHistograms (see RivetHistograms.getIndex()).
+ *
+ * @author icharala
+ */
+public class HistogramIndex implements RivetHistograms.ChangeListener {
+
+    /**
+     * Compound query over the index
+     */
+    public class Query {
+
+        private final BitSet result;
+
+        Query() {
+            result = new BitSet(rows.size());
+            result.set(0, rows.size());
+            result.andNot(freeRows);
+        }
+
+        /**
+         * Keep only the entries with the given value in a column
+         * @param c The column
+         * @param value The value
+         * @return This query
+         */
+        public Query where(Column c, String value) {
+            BitSet b = hash.get(c).get(value);
+            if (b == null) {
+                result.clear();
+            } else {
+                result.and(b);
+            }
+            return this;
+        }
+
+        /**
+         * Keep only the entries with a value in the given range
+         * @param c The column
+         * @param from The lowest value (inclusive)
+         * @param to The highest value (inclusive)
+         * @return This query
+         */
+        public Query between(Column c, String from, String to) {
+            BitSet b = new BitSet(rows.size());
+            for (BitSet r: sorted.get(c).subMap(from, true, to, true).values()) {
+                b.or(r);
+            }
+            result.and(b);
+            return this;
+        }
+
+        /**
+         * Keep only the entries of the given [analysis_histogram]
+         * @param key The analysis_histogram key
+         * @return This query
+         */
+        public Query key(String key) {
+            BitSet b = keys.get(key);
+            if (b == null) {
+                result.clear();
+            } else {
+                result.and(b);
+            }
+            return this;
+        }
+
+        /**
+         * Keep only the enabled entries
+         * @return This query
+         */
+        public Query enabled() {
+            result.and(enabledRows);
+            return this;
+        }
+
+        /**
+         * @return The row IDs of the matching entries
+         */
+        public int[] rows() {
+            int[] ans = new int[result.cardinality()];
+            int n = 0;
+            for (int i=result.nextSetBit(0); i>=0; i=result.nextSetBit(i+1)) {
+                ans[n++] = i;
+            }
+            return ans;
+        }
+
+        /**
+         * @return The matching entries
+         */
+        public List<Data> entries() {
+            ArrayList<Data> ans = new ArrayList<>(result.cardinality());
+            for (int i=result.nextSetBit(0); i>=0; i=result.nextSetBit(i+1)) {
+                ans.add(rows.get(i));
+            }
+            return ans;
+        }
+
+    }
+
+    /**
+     * Order of the values in the sorted indexes. Numbers (ex. energies)
+     * are ordered by value, the rest alphabetically.
+     */
+    private static final Comparator<String> VALUE_ORDER = new Comparator<String>() {
+        @Override
+        public int compare(String a, String b) {
+            Double da = toNumber(a), db = toNumber(b);
+            if ((da != null) && (db != null)) {
+                int c = Double.compare(da, db);
+                if (c != 0) return c;
+            } else if (da != null) {
+                return -1;
+            } else if (db != null) {
+                return 1;
+            }
+            return a.compareTo(b);
+        }
+
+        private Double toNumber(String s) {
+            if (s.isEmpty() || !Character.isDigit(s.charAt(0))) return null;
+            try {
+                return Double.valueOf(s);
+            } catch (NumberFormatException ex) {
+                return null;
+            }
+        }
+    };
+
+    /**
+     * The entries by row ID (null for free IDs)
+     */
+    private final ArrayList<Data> rows;
+
+    /**
+     * The row IDs of the entries
+     */
+    private final IdentityHashMap<Data, Integer> rowIds;
+
+    /**
+     * The row IDs that can be re-used
+     */
+    private final BitSet freeRows;
+
+    /**
+     * The row IDs of the enabled entries
+     */
+    private final BitSet enabledRows;
+
+    /**
+     * The hash index of every column
+     */
+    private final HashMap<Column, HashMap<String, BitSet>> hash;
+
+    /**
+     * The sorted index of every column (sharing the sets with the hash index)
+     */
+    private final HashMap<Column, TreeMap<String, BitSet>> sorted;
+
+    /**
+     * The index of the analysis_histogram keys
+     */
+    private final HashMap<String, BitSet> keys;
+
+    /**
+     * Create an empty index
+     */
+    public HistogramIndex() {
+        rows = new ArrayList<>();
+        rowIds = new IdentityHashMap<>();
+        freeRows = new BitSet();
+        enabledRows = new BitSet();
+        hash = new HashMap<>();
+        sorted = new HashMap<>();
+        for (Column c: Column.values()) {
+            hash.put(c, new HashMap<String, BitSet>());
+            sorted.put(c, new TreeMap<String, BitSet>(VALUE_ORDER));
+        }
+        keys = new HashMap<>();
+    }
+
+    /**
+     * Start a compound query over all the entries
+     * @return The query
+     */
+    public Query query() {
+        return new Query();
+    }
+
+    /**
+     * Get the entry with the given row ID
+     * @param row The row ID
+     * @return The data entry or null if the ID is not used
+     */
+    public Data get(int row) {
+        return rows.get(row);
+    }
+
+    /**
+     * Get the row ID of an entry
+     * @param d The data entry
+     * @return The row ID or -1 if the entry is not indexed
+     */
+    public int rowOf(Data d) {
+        Integer row = rowIds.get(d);
+        return (row == null) ? -1 : row;
+    }
+
+    /**
+     * @return The number of indexed entries
+     */
+    public int size() {
+        return rowIds.size();
+    }
+
+    /**
+     * Get the distinct values of a column, in sorted order
+     * @param c The column
+     * @return The values
+     */
+    public NavigableMap<String, BitSet> values(Column c) {
+        return sorted.get(c);
+    }
+
+    /**
+     * Add a row to the set of a value
+     */
+    private static void addTo(Map<String, BitSet> index, TreeMap<String, BitSet> order, String value, int row) {
+        BitSet b = index.get(value);
+        if (b == null) {
+            b = new BitSet();
+            index.put(value, b);
+            if (order != null) order.put(value, b);
+        }
+        b.set(row);
+    }
+
+    /**
+     * Remove a row from the set of a value
+     */
+    private static void removeFrom(Map<String, BitSet> index, TreeMap<String, BitSet> order, String value, int row) {
+        BitSet b = index.get(value);
+        if (b == null) return;
+        b.clear(row);
+        if (b.isEmpty()) {
+            index.remove(value);
+            if (order != null) order.remove(value);
+        }
+    }
+
+    /**
+     * Index an entry
+     */
+    private void insert(Data d) {
+        if (rowIds.containsKey(d)) return;
+
+        // Re-use free IDs
+        int row = freeRows.nextSetBit(0);
+        if (row < 0) {
+            row = rows.size();
+            rows.add(d);
+        } else {
+            freeRows.clear(row);
+            rows.set(row, d);
+        }
+        rowIds.put(d, row);
+
+        for (Column c: Column.values()) {
+            addTo(hash.get(c), sorted.get(c), c.of(d), row);
+        }
+        addTo(keys, null, d.analysis + "_" + d.histogram, row);
+        enabledRows.set(row, d.enabled);
+    }
+
+    /**
+     * Remove an entry from the index
+     */
+    private void delete(Data d) {
+        Integer row = rowIds.remove(d);
+        if (row == null) return;
+
+        for (Column c: Column.values()) {
+            removeFrom(hash.get(c), sorted.get(c), c.of(d), row);
+        }
+        removeFrom(keys, null, d.analysis + "_" + d.histogram, row);
+        enabledRows.clear(row);
+        rows.set(row, null);
+        freeRows.set(row);
+    }
+
+    @Override
+    public void histogramsLoaded(RivetHistograms histograms) {
+
+        // Start over
+        rows.clear();
+        rowIds.clear();
+        freeRows.clear();
+        enabledRows.clear();
+        for (Column c: Column.values()) {
+            hash.get(c).clear();
+            sorted.get(c).clear();
+        }
+        keys.clear();
+
+        // Index all entries
+        for (DataGroup g: histograms.dataGroups) {
+            for (Data d: g.values) {
+                insert(d);
+            }
+        }
+    }
+
+    @Override
+    public void histogramsChanged(RivetHistograms histograms, RivetHistograms.Diff diff) {
+        for (Data d: diff.removed) {
+            delete(d);
+        }
+        for (Data d: diff.added) {
+            insert(d);
+        }
+        for (Data d: diff.toggled) {
+            entryToggled(null, d);
+        }
+    }
+
+    @Override
+    public void entryAdded(DataGroup group, Data entry) {
+        insert(entry);
+    }
+
+    @Override
+    public void entryRemoved(DataGroup group, Data entry) {
+        delete(entry);
+    }
+
+    @Override
+    public void entryToggled(DataGroup group, Data entry) {
+        Integer row = rowIds.get(entry);
+        if (row != null) {
+            enabledRows.set(row, entry.enabled);
+        }
+    }
+
+}
@@ -0,0 +1,594 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package ch.cern.mcplots.data;
+
+import ch.cern.mcplots.data.RivetHistograms.Data;
+import ch.cern.mcplots.data.RivetHistograms.DataGroup;
+import ch.cern.mcplots.data.RivetHistograms.DataParams;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Single-pass parser for the contents of rivet-histograms.map
+ *
+ * Every line is split in whitespace-separated columns without regular
+ * expressions, in the following format:
+ *
+ * [#][beam] [process] [energy] [params] [analysis_histogram] [observable] [cuts]
+ *
+ * @author icharala
+ */
+final class HistogramsParser {
+
+    /**
+     * The smallest range of text worth parsing in a separate task
+     */
+    private static final int MIN_CHUNK_SIZE = 64 * 1024;
+
+    /**
+     * Number of columns in a data line
+     */
+    private static final int NUM_COLUMNS = 7;
+
+    /**
+     * Character classes of the columns
+     */
+    private static final int CC_LOWER = 1, CC_UPPER = 2, CC_DIGIT = 4, CC_UNDERSCORE = 8,
+                             CC_DASH = 16, CC_DOT = 32, CC_QUOTE = 64, CC_COMMA = 128;
+
+    /**
+     * Permitted characters of every column
+     */
+    private static final int[] COLUMN_CLASSES = new int[] {
+        /* beam */      CC_LOWER | CC_DASH,
+        /* process */   CC_LOWER | CC_UPPER | CC_DIGIT | CC_UNDERSCORE | CC_DASH,
+        /* energy */    CC_DIGIT | CC_DOT,
+        /* params */    CC_LOWER | CC_UPPER | CC_DIGIT | CC_UNDERSCORE | CC_DASH | CC_DOT | CC_QUOTE | CC_COMMA,
+        /* analysis */  CC_LOWER | CC_UPPER | CC_DIGIT | CC_UNDERSCORE | CC_DASH | CC_DOT,
+        /* observable */CC_LOWER | CC_UPPER | CC_DIGIT | CC_UNDERSCORE | CC_DASH | CC_DOT,
+        /* cuts */      CC_LOWER | CC_UPPER | CC_DIGIT | CC_UNDERSCORE | CC_DASH | CC_DOT
+    };
+
+    /**
+     * Character class of every ASCII character
+     */
+    private static final int[] CHAR_CLASS = new int[128];
+    static {
+        for (char c='a'; c<='z'; c++) CHAR_CLASS[c] = CC_LOWER;
+        for (char c='A'; c<='Z'; c++) CHAR_CLASS[c] = CC_UPPER;
+        for (char c='0'; c<='9'; c++) CHAR_CLASS[c] = CC_DIGIT;
+        CHAR_CLASS['_'] = CC_UNDERSCORE;
+        CHAR_CLASS['-'] = CC_DASH;
+        CHAR_CLASS['.'] = CC_DOT;
+        CHAR_CLASS['\''] = CC_QUOTE;
+        CHAR_CLASS[','] = CC_COMMA;
+    }
+
+    /**
+     * The pool of the column values
+     */
+    private final TokenPool pool;
+
+    /**
+     * The parameter objects, shared between lines with the same [params]
+     */
+    private final HashMap<String, DataParams> paramsCache;
+
+    /**
+     * Start and end of the columns of the current line
+     */
+    private final int[] colStart, colEnd;
+
+    /**
+     * The heading comment
+     */
+    private String headingComment;
+
+    /**
+     * The parsed groups
+     */
+    private final ArrayList<DataGroup> groups;
+
+    /**
+     * The group with only comments at the end of the parsed text, that
+     * continues in the text that follows (or null)
+     */
+    private DataGroup pending;
+
+    /**
+     * The charset the text was decoded with, or null if every character
+     * of the text is one byte of the file
+     */
+    private final Charset charset;
+
+    /**
+     * The difference between the byte offset in the file and the
+     * character index in the text, up to the current line
+     */
+    private long byteShift;
+
+    /**
+     * The entries of the previous contents of the file by line (see
+     * Data.key()), to re-use for the lines that did not change
+     */
+    private Map<String, ArrayDeque<Data>> previous;
+
+    /**
+     * The re-used entries that were enabled or disabled since
+     */
+    private final ArrayList<Data> toggled;
+
+    /**
+     * Buffer for building the keys of the lines
+     */
+    private final StringBuilder keyBuilder;
+
+    /**
+     * Initialize the parser
+     * @param pool The pool to resolve the column values through
+     * @param charset The charset the text was decoded with, or null if
+     *        the characters of the text are the bytes of the file
+     */
+    HistogramsParser(TokenPool pool, Charset charset) {
+        this.pool = pool;
+        this.charset = charset;
+        this.byteShift = 0;
+        this.paramsCache = new HashMap<>();
+        this.colStart = new int[NUM_COLUMNS];
+        this.colEnd = new int[NUM_COLUMNS];
+        this.headingComment = "";
+        this.groups = new ArrayList<>();
+        this.toggled = new ArrayList<>();
+        this.keyBuilder = new StringBuilder(128);
+    }
+
+    /**
+     * Re-use the given entries for the lines that did not change, instead
+     * of parsing them again. Every entry is re-used at most once, and it
+     * is removed from the map. Identical lines are re-used in order.
+     *
+     * @param previous The entries of the previous contents, by Data.key()
+     */
+    void reuse(Map<String, ArrayDeque<Data>> previous) {
+        this.previous = previous;
+    }
+
+    /**
+     * @return The re-used entries that changed their enabled state
+     */
+    ArrayList<Data> getToggled() {
+        return toggled;
+    }
+
+    /**
+     * @return The heading comment of the parsed text
+     */
+    String getHeadingComment() {
+        return headingComment;
+    }
+
+    /**
+     * @return The data groups of the parsed text
+     */
+    ArrayList<DataGroup> getGroups() {
+        return groups;
+    }
+
+    /**
+     * Check if the given character is a whitespace (regex \s)
+     */
+    private static boolean isSpace(char c) {
+        return (c == ' ') || (c == '\t') || (c == '\n') || (c == 0x0B) || (c == '\f') || (c == '\r');
+    }
+
+    /**
+     * Skip the whitespace starting at the given position
+     * @return The position of the first non-whitespace character (or end)
+     */
+    static int skipSpace(CharSequence text, int pos, int end) {
+        while ((pos < end) && isSpace(text.charAt(pos))) pos++;
+        return pos;
+    }
+
+    /**
+     * Find the end of the line starting at the given position
+     * @return The position of the line terminator (or end)
+     */
+    static int lineEnd(CharSequence text, int pos, int end) {
+        while (pos < end) {
+            char c = text.charAt(pos);
+            if ((c == '\n') || (c == '\r')) break;
+            pos++;
+        }
+        return pos;
+    }
+
+    /**
+     * Skip the line terminator (\n, \r or \r\n) at the given position
+     * @return The start of the next line
+     */
+    static int nextLine(CharSequence text, int eol, int end) {
+        if (eol >= end) return end;
+        if ((text.charAt(eol) == '\r') && (eol+1 < end) && (text.charAt(eol+1) == '\n')) {
+            return eol + 2;
+        }
+        return eol + 1;
+    }
+
+    /**
+     * Account for the extra bytes of the non-ASCII characters of a line,
+     * so the file offsets of the following lines are correct.
+     */
+    private void shiftBytes(CharSequence text, int start, int end) {
+        if (charset == null) return;
+        for (int i=start; i<end; i++) {
+            if (text.charAt(i) >= 128) {
+                byteShift += charset.encode(CharBuffer.wrap(text, start, end)).remaining() - (end - start);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Create a new group, starting at the given position of the text
+     */
+    private DataGroup newGroup(int pos) {
+        DataGroup g = new DataGroup();
+        g.offset = pos + byteShift;
+        return g;
+    }
+
+    /**
+     * Parse the given range of text
+     *
+     * The offset of every group in the file is stored in DataGroup.offset,
+     * assuming the text starts at the beginning of the file.
+     *
+     *
+     * @param text The text to parse
+     * @param start The start of the range (inclusive)
+     * @param end The end of the range (exclusive)
+     * @return The offset of the end of the range in the file
+     */
+    long parse(CharSequence text, int start, int end) {
+        return parse(text, start, end, true);
+    }
+
+    /**
+     * Parse the given range of text in parallel.
+     *
+     * The text is split in chunks at blank lines, where no group can span,
+     * and every chunk is parsed by a separate parser on the given pool. The
+     * groups of the chunks are then joined in order. Only the first chunk
+     * can contain the heading comment, and the comments at the end of a
+     * chunk belong to the first group of the next one, exactly like when
+     * parsing sequentially.
+     *
+     * @param text The text to parse (must be safe to read from many threads)
+     * @param start The start of the range (inclusive)
+     * @param end The end of the range (exclusive)
+     * @param pool The pool to run the parsers on
+     * @param chunks The maximum number of chunks to split the text in
+     * @return The offset of the end of the range in the file
+     */
+    long parseParallel(final CharSequence text, int start, int end, ForkJoinPool pool, int chunks) {
+
+        // Split at blank lines
+        chunks = Math.min(chunks, (end - start) / MIN_CHUNK_SIZE);
+        ArrayList<Integer> bounds = new ArrayList<>();
+        bounds.add(start);
+        for (int i=1; i<chunks; i++) {
+            int pos = blankLine(text, start + (int)((long)(end - start) * i / chunks), end);
+            if ((pos > bounds.get(bounds.size()-1)) && (pos < end)) {
+                bounds.add(pos);
+            }
+        }
+        bounds.add(end);
+        if (bounds.size() < 3) {
+            return parse(text, start, end, true);
+        }
+
+        // Parse the chunks
+        ArrayList<ForkJoinTask<HistogramsParser>> tasks = new ArrayList<>();
+        for (int i=0; i<bounds.size()-1; i++) {
+            final int from = bounds.get(i), to = bounds.get(i+1);
+            final boolean heading = (i == 0);
+            tasks.add(pool.submit(new Callable<HistogramsParser>() {
+                @Override
+                public HistogramsParser call() {
+                    HistogramsParser p = new HistogramsParser(new TokenPool(), charset);
+                    p.byteShift = p.parse(text, from, to, heading) - to;
+                    return p;
+                }
+            }));
+        }
+
+        // Join the groups of the chunks
+        for (int i=0; i<tasks.size(); i++) {
+            HistogramsParser p = tasks.get(i).join();
+            if (i == 0) {
+                headingComment = p.headingComment;
+            }
+            for (DataGroup g: p.groups) {
+                g.offset += byteShift;
+                if (pending != null) {
+                    g.comment = pending.comment + g.comment;
+                    g.offset = pending.offset;
+                    pending = null;
+                }
+                groups.add(g);
+            }
+            if (p.pending != null) {
+                p.pending.offset += byteShift;
+                if (pending == null) {
+                    pending = p.pending;
+                } else {
+                    pending.comment += p.pending.comment;
+                }
+            }
+            byteShift += p.byteShift;
+        }
+
+        return end + byteShift;
+
+    }
+
+    /**
+     * Find the first blank line that starts after the given position
+     * @return The start of the blank line (or end)
+     */
+    private static int blankLine(CharSequence text, int pos, int end) {
+        pos = nextLine(text, lineEnd(text, pos, end), end);
+        while (pos < end) {
+            int eol = lineEnd(text, pos, end);
+            if (skipSpace(text, pos, eol) == eol) break;
+            pos = nextLine(text, eol, end);
+        }
+        return pos;
+    }
+
+    /**
+     * Parse the given range of text
+     * @param heading TRUE if the range is at the beginning of the file,
+     *        where the heading comment is
+     */
+    private long parse(CharSequence text, int start, int end, boolean heading) {
+
+        // Possition/indexing
+        boolean pReadingHeadingComment = heading;
+        DataGroup pCurrentGroup = null;
+
+        int pos = start;
+        Data d;
+        while (pos < end) {
+
+            // Find end of line (\n, \r or \r\n)
+            int eol = lineEnd(text, pos, end);
+            int next = nextLine(text, eol, end);
+
+            // Trim excess whitespace
+            int ls = pos, le = eol, lineStart = pos;
+            while ((ls < le) && (text.charAt(ls) <= ' ')) ls++;
+            while ((le > ls) && (text.charAt(le-1) <= ' ')) le--;
+            pos = next;
+
+            // Process whitespace cases
+            if (ls == le) {
+
+                // Quit heading comment on the first empty line
+                pReadingHeadingComment = false;
+
+                // Commit active section (split on space)
+                if ((pCurrentGroup != null) && (pCurrentGroup.values.size() > 0)) {
+                    groups.add(pCurrentGroup);
+                    pCurrentGroup = null;
+                }
+
+            }
+
+            // Process comment cases
+            else if (text.charAt(ls) == '#') {
+
+                // Update heading comment
+                if (pReadingHeadingComment) {
+                    headingComment += text.subSequence(ls, le).toString() + "\n";
+                    shiftBytes(text, ls, le);
+                }
+
+                // Check if the line is actually a commented-out data line
+                else if ((d = parseData(text, skipSpace(text, ls+1, le), le, false)) != null) {
+
+                    // Create new section if we don't have any active
+                    if (pCurrentGroup == null)
+                        pCurrentGroup = newGroup(lineStart);
+
+                    // Add data value
+                    pCurrentGroup.values.add(d);
+
+                }
+
+                // Update section comment
+                else {
+
+                    // Commit active section (assuming no space was in between.)
+                    if ((pCurrentGroup != null) && (pCurrentGroup.values.size() > 0)) {
+                        groups.add(pCurrentGroup);
+                        pCurrentGroup = null;
+                    }
+
+                    // Create new section if we don't have any active
+                    if (pCurrentGroup == null)
+                        pCurrentGroup = newGroup(lineStart);
+
+                    // Update current group sections
+                    pCurrentGroup.comment += text.subSequence(ls, le).toString() + "\n";
+                    shiftBytes(text, ls, le);
+
+                }
+            }
+
+            // Process data cases
+            else {
+
+                // Check if line matches
+                if ((d = parseData(text, ls, le, true)) != null) {
+
+                    // Create new section if we don't have any active
+                    if (pCurrentGroup == null)
+                        pCurrentGroup = newGroup(lineStart);
+
+                    // Add data value
+                    pCurrentGroup.values.add(d);
+
+                } else {
+                    Logger.getLogger(RivetHistograms.class.getName()).log(Level.WARNING, "Unparsable line: {0}", text.subSequence(ls, le));
+                    shiftBytes(text, ls, le);
+                }
+
+            }
+
+        }
+
+        // Commit active section (without end-line space)
+        if ((pCurrentGroup != null) && (pCurrentGroup.values.size() > 0))
+            groups.add(pCurrentGroup);
+        else
+            pending = pCurrentGroup;
+
+        return end + byteShift;
+
+    }
+
+    /**
+     * Split the columns of a data line in colStart and colEnd
+     *
+     * @param text The text to parse
+     * @param start The start of the line, without the leading '#' or whitespace
+     * @param end The end of the line, without trailing whitespace
+     * @return The position of the underscore that splits [analysis_histogram],
+     *         or -1 if the line is not a data line
+     */
+    private int splitColumns(CharSequence text, int start, int end) {
+
+        // Split columns and validate their characters
+        int pos = start;
+        for (int col=0; col<NUM_COLUMNS; col++) {
+            if (pos >= end) return -1;
+
+            int allowed = COLUMN_CLASSES[col];
+            colStart[col] = pos;
+            char c;
+            while ((pos < end) && !isSpace(c = text.charAt(pos))) {
+                if ((c >= 128) || ((CHAR_CLASS[c] & allowed) == 0)) return -1;
+                pos++;
+            }
+            colEnd[col] = pos;
+
+            // Skip separator
+            pos = skipSpace(text, pos, end);
+        }
+
+        // Too many columns
+        if (pos < end) return -1;
+
+        // Split [analysis_histogram] on the last underscore, that follows
+        // the Rivet configuration.
+        int split = colEnd[4] - 1;
+        while ((split >= colStart[4]) && (text.charAt(split) != '_')) split--;
+        return (split < colStart[4]) ? -1 : split;
+
+    }
+
+    /**
+     * @return The key of the columns split last (see Data.key())
+     */
+    private String columnsKey(CharSequence text) {
+        keyBuilder.setLength(0);
+        for (int col=0; col<NUM_COLUMNS; col++) {
+            if (col > 0) keyBuilder.append(' ');
+            keyBuilder.append(text, colStart[col], colEnd[col]);
+        }
+        return keyBuilder.toString();
+    }
+
+    /**
+     * Get the key of a single line, the same as Data.key() of the entry
+     * it would be parsed to
+     *
+     * @param text The text
+     * @param start The start of the line
+     * @param end The end of the line, without the line terminator
+     * @return The key, or null if the line is not an (enabled or
+     *         commented-out) data line
+     */
+    String lineKey(CharSequence text, int start, int end) {
+        while ((start < end) && (text.charAt(start) <= ' ')) start++;
+        while ((end > start) && (text.charAt(end-1) <= ' ')) end--;
+        if ((start < end) && (text.charAt(start) == '#')) {
+            start = skipSpace(text, start+1, end);
+        }
+        return (splitColumns(text, start, end) < 0) ? null : columnsKey(text);
+    }
+
+    /**
+     * Split the columns of a data line and build the data entry
+     *
+     * @param text The text to parse
+     * @param start The start of the line, without the leading '#' or whitespace
+     * @param end The end of the line, without trailing whitespace
+     * @param enabled TRUE if the line was not commented-out
+     * @return The data entry or null if the line is not a data line
+     */
+    private Data parseData(CharSequence text, int start, int end, boolean enabled) {
+        int split = splitColumns(text, start, end);
+        if (split < 0) return null;
+
+        // Re-use the entry of an unchanged line
+        if (previous != null) {
+            ArrayDeque<Data> same = previous.get(columnsKey(text));
+            Data d = (same == null) ? null : same.poll();
+            if (d != null) {
+                if (d.enabled != enabled) {
+                    d.enabled = enabled;
+                    toggled.add(d);
+                }
+                return d;
+            }
+        }
+
+        // Resolve parameters
+        String params = pool.get(text, colStart[3], colEnd[3]);
+        DataParams p = paramsCache.get(params);
+        if (p == null) {
+            p = new DataParams(params);
+            paramsCache.put(params, p);
+        }
+
+        return new Data(
+                enabled,
+                pool.get(text, colStart[0], colEnd[0]),
+                pool.get(text, colStart[1], colEnd[1]),
+                pool.get(text, colStart[2], colEnd[2]),
+                p,
+                pool.get(text, colStart[4], split),
+                pool.get(text, split+1, colEnd[4]),
+                pool.get(text, colStart[5], colEnd[5]),
+                pool.get(text, colStart[6], colEnd[6])
+        );
+
+    }
+
+}
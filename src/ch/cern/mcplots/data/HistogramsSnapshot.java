@@ -0,0 +1,379 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package ch.cern.mcplots.data;
+
+import ch.cern.mcplots.data.RivetHistograms.Data;
+import ch.cern.mcplots.data.RivetHistograms.DataGroup;
+import ch.cern.mcplots.data.RivetHistograms.DataParams;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Binary snapshot of the parsed contents of rivet-histograms.map
+ *
+ * The snapshot is a table of all the distinct strings, followed by
+ * fixed-width records of the parameters, the groups and the data entries
+ * that refer to the strings by index. It is read with a single sequential
+ * read, instead of parsing the text file again.
+ *
+ * The snapshot is only valid for the exact contents of the text file it
+ * was created from, which is identified by its size, modification time
+ * and CRC-32. They are recorded from the bytes that were actually parsed
+ * or saved, never by reading the file again. The checksum of the file is
+ * only calculated when the size matches but the modification time does
+ * not (ex. after a checkout).
+ *
+ * @author icharala
+ */
+final class HistogramsSnapshot {
+
+    /**
+     * Magic number at the beginning of the snapshot ('RHSN')
+     */
+    private static final int MAGIC = 0x5248534e;
+
+    /**
+     * The version of the format
+     */
+    private static final int VERSION = 1;
+
+    /**
+     * The offset of the modification time of the source in the header
+     */
+    private static final int MODIFIED_OFFSET = 16;
+
+    /**
+     * The size of the buffer used when writing or calculating checksums
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The encoding of the strings
+     */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * The heading comment
+     */
+    final String headingComment;
+
+    /**
+     * The data groups, with their offsets in the text file
+     */
+    final ArrayList<DataGroup> groups;
+
+    /**
+     * The offset of the end of the parsed text
+     */
+    final long endOffset;
+
+    /**
+     * The modification time of the text file
+     */
+    final long modified;
+
+    /**
+     * The CRC-32 of the text file
+     */
+    final long checksum;
+
+    private HistogramsSnapshot(String headingComment, ArrayList<DataGroup> groups, long endOffset, long modified, long checksum) {
+        this.headingComment = headingComment;
+        this.groups = groups;
+        this.endOffset = endOffset;
+        this.modified = modified;
+        this.checksum = checksum;
+    }
+
+    /**
+     * Calculate the CRC-32 of the remaining bytes of a buffer, without
+     * moving its position
+     * @param buf The buffer
+     * @return The checksum
+     */
+    static long checksum(ByteBuffer buf) {
+        CRC32 crc = new CRC32();
+        if (buf.hasArray()) {
+            crc.update(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+            return crc.getValue();
+        }
+        ByteBuffer b = buf.duplicate();
+        byte[] chunk = new byte[Math.min(b.remaining(), BUFFER_SIZE)];
+        while (b.hasRemaining()) {
+            int n = Math.min(b.remaining(), chunk.length);
+            b.get(chunk, 0, n);
+            crc.update(chunk, 0, n);
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Calculate the CRC-32 of a file
+     * @param file The file
+     * @return The checksum
+     * @throws IOException
+     */
+    static long checksum(Path file) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] buf = new byte[BUFFER_SIZE];
+        ByteBuffer bb = ByteBuffer.wrap(buf);
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            int n;
+            while ((n = ch.read(bb)) >= 0) {
+                crc.update(buf, 0, n);
+                bb.clear();
+            }
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Read the snapshot of the given text file
+     *
+     * @param snapshot The snapshot file
+     * @param source The text file it was created from
+     * @param charset The charset the text file is decoded with
+     * @return The snapshot or null if it's missing or not valid any more
+     * @throws IOException
+     */
+    static HistogramsSnapshot read(Path snapshot, Path source, Charset charset) throws IOException {
+        ByteBuffer buf;
+        try {
+            buf = ByteBuffer.wrap(Files.readAllBytes(snapshot));
+        } catch (NoSuchFileException ex) {
+            return null;
+        }
+
+        // Check header
+        if ((buf.remaining() < 32) || (buf.getInt() != MAGIC) || (buf.getInt() != VERSION)) {
+            return null;
+        }
+        long size = buf.getLong();
+        long modified = buf.getLong();
+        long crc = buf.getLong();
+        if (size != Files.size(source)) {
+            return null;
+        }
+        long sourceModified = Files.getLastModifiedTime(source).toMillis();
+        if (modified != sourceModified) {
+            if (crc != checksum(source)) {
+                return null;
+            }
+
+            // Same contents; remember the new time, to skip the checksum next time
+            try (FileChannel ch = FileChannel.open(snapshot, StandardOpenOption.WRITE)) {
+                ByteBuffer m = ByteBuffer.allocate(8);
+                m.putLong(0, sourceModified);
+                ch.write(m, MODIFIED_OFFSET);
+            }
+        }
+
+        try {
+
+            // String table
+            if (!charset.name().equals(readString(buf))) {
+                return null;
+            }
+            String[] strings = new String[buf.getInt()];
+            for (int i=0; i<strings.length; i++) {
+                strings[i] = readString(buf);
+            }
+
+            // Parameter records
+            DataParams[] params = new DataParams[buf.getInt()];
+            for (int i=0; i<params.length; i++) {
+                params[i] = new DataParams(strings[buf.getInt()]);
+            }
+
+            // Group and entry records
+            String headingComment = strings[buf.getInt()];
+            long endOffset = buf.getLong();
+            if (endOffset != size) {
+                return null;
+            }
+            int numGroups = buf.getInt();
+            ArrayList<DataGroup> groups = new ArrayList<>(numGroups);
+            for (int i=0; i<numGroups; i++) {
+                DataGroup g = new DataGroup();
+                g.comment = strings[buf.getInt()];
+                g.offset = buf.getLong();
+                int numValues = buf.getInt();
+                g.values.ensureCapacity(numValues);
+                for (int j=0; j<numValues; j++) {
+                    boolean enabled = (buf.get() != 0);
+                    g.values.add(new Data(
+                            enabled,
+                            strings[buf.getInt()],
+                            strings[buf.getInt()],
+                            strings[buf.getInt()],
+                            params[buf.getInt()],
+                            strings[buf.getInt()],
+                            strings[buf.getInt()],
+                            strings[buf.getInt()],
+                            strings[buf.getInt()]
+                    ));
+                }
+                groups.add(g);
+            }
+
+            return new HistogramsSnapshot(headingComment, groups, endOffset, sourceModified, crc);
+
+        } catch (RuntimeException ex) {
+            // Truncated or corrupted snapshot
+            return null;
+        }
+    }
+
+    /**
+     * Read a length-prefixed UTF-8 string
+     */
+    private static String readString(ByteBuffer buf) {
+        int len = buf.getInt();
+        String s = new String(buf.array(), buf.position(), len, UTF8);
+        buf.position(buf.position() + len);
+        return s;
+    }
+
+    /**
+     * Write the snapshot of a text file
+     *
+     * @param snapshot The snapshot file
+     * @param source The text file the contents were loaded from or saved to
+     * @param sourceModified The modification time of the text file when the
+     *        contents were loaded or saved (nothing is written if it changed)
+     * @param checksum The CRC-32 of the contents that were loaded or saved
+     * @param charset The charset the text file is decoded with
+     * @param headingComment The heading comment
+     * @param groups The data groups
+     * @param endOffset The offset of the end of the text (the size of the contents)
+     * @throws IOException
+     */
+    static void write(Path snapshot, Path source, long sourceModified, long checksum, Charset charset, String headingComment,
+                      List<DataGroup> groups, long endOffset) throws IOException {
+        if (Files.getLastModifiedTime(source).toMillis() != sourceModified) {
+            return;
+        }
+
+        // Collect the distinct strings and parameters
+        HashMap<String, Integer> strings = new HashMap<>();
+        ArrayList<String> stringList = new ArrayList<>();
+        IdentityHashMap<DataParams, Integer> params = new IdentityHashMap<>();
+        ArrayList<DataParams> paramsList = new ArrayList<>();
+        intern(headingComment, strings, stringList);
+        for (DataGroup g: groups) {
+            intern(g.comment, strings, stringList);
+            for (Data d: g.values) {
+                intern(d.beam, strings, stringList);
+                intern(d.process, strings, stringList);
+                intern(d.energy, strings, stringList);
+                intern(d.analysis, strings, stringList);
+                intern(d.histogram, strings, stringList);
+                intern(d.observable, strings, stringList);
+                intern(d.cuts, strings, stringList);
+                if (!params.containsKey(d.params)) {
+                    params.put(d.params, paramsList.size());
+                    paramsList.add(d.params);
+                    intern(d.params.toString(), strings, stringList);
+                }
+            }
+        }
+
+        Files.createDirectories(snapshot.getParent());
+        Path tmp = Files.createTempFile(snapshot.getParent(), snapshot.getFileName().toString(), ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), BUFFER_SIZE))) {
+
+                // Header
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(endOffset);
+                out.writeLong(sourceModified);
+                out.writeLong(checksum);
+
+                // String table
+                writeString(out, charset.name());
+                out.writeInt(stringList.size());
+                for (String s: stringList) {
+                    writeString(out, s);
+                }
+
+                // Parameter records
+                out.writeInt(paramsList.size());
+                for (DataParams p: paramsList) {
+                    out.writeInt(strings.get(p.toString()));
+                }
+
+                // Group and entry records
+                out.writeInt(strings.get(headingComment));
+                out.writeLong(endOffset);
+                out.writeInt(groups.size());
+                for (DataGroup g: groups) {
+                    out.writeInt(strings.get(g.comment));
+                    out.writeLong(g.offset);
+                    out.writeInt(g.values.size());
+                    for (Data d: g.values) {
+                        out.writeByte(d.enabled ? 1 : 0);
+                        out.writeInt(strings.get(d.beam));
+                        out.writeInt(strings.get(d.process));
+                        out.writeInt(strings.get(d.energy));
+                        out.writeInt(params.get(d.params));
+                        out.writeInt(strings.get(d.analysis));
+                        out.writeInt(strings.get(d.histogram));
+                        out.writeInt(strings.get(d.observable));
+                        out.writeInt(strings.get(d.cuts));
+                    }
+                }
+
+            }
+
+            // Replace the previous snapshot
+            try {
+                Files.move(tmp, snapshot, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(tmp, snapshot, StandardCopyOption.REPLACE_EXISTING);
+            }
+
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * Add a string to the string table, if missing
+     */
+    private static void intern(String s, HashMap<String, Integer> strings, ArrayList<String> stringList) {
+        if (!strings.containsKey(s)) {
+            strings.put(s, stringList.size());
+            stringList.add(s);
+        }
+    }
+
+    /**
+     * Write a length-prefixed UTF-8 string
+     */
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(UTF8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+}
@@ -0,0 +1,317 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package ch.cern.mcplots.data;
+
+/**
+ * Minimal pull tokenizer for the HTML pages of TRAC.
+ *
+ * It walks the page once and returns start tags, end tags and text,
+ * without building a document tree. Attributes are only parsed when
+ * asked for, and text is only decoded when asked for, so skipping the
+ * uninteresting parts of a page costs little more than a scan.
+ *
+ * It's not a conforming HTML parser: it's good enough for the pages
+ * generated by TRAC (well-formed, quoted attributes), and never fails on
+ * anything else.
+ *
+ * @author icharala
+ */
+final class HtmlTokenizer {
+
+    static final int EOF = 0;
+    static final int START = 1;
+    static final int END = 2;
+    static final int TEXT = 3;
+
+    /**
+     * The page
+     */
+    private final String html;
+
+    /**
+     * The position after the last token
+     */
+    private int pos;
+
+    /**
+     * The lower-case name of the last tag
+     */
+    private String name;
+
+    /**
+     * The range of the attributes of the last start tag
+     */
+    private int attrStart, attrEnd;
+
+    /**
+     * The range of the last text
+     */
+    private int textStart, textEnd;
+
+    /**
+     * Create a tokenizer of a page
+     * @param html The contents of the page
+     */
+    HtmlTokenizer(String html) {
+        this.html = html;
+        this.pos = 0;
+    }
+
+    /**
+     * Move to the next token
+     * @return The type of the token (EOF, START, END or TEXT)
+     */
+    int next() {
+        int len = html.length();
+        while (pos < len) {
+
+            // Text up to the next tag
+            if (html.charAt(pos) != '<') {
+                int lt = html.indexOf('<', pos);
+                textStart = pos;
+                textEnd = pos = (lt < 0) ? len : lt;
+                return TEXT;
+            }
+
+            // Comments, doctype and processing instructions
+            if (html.startsWith("<!--", pos)) {
+                int e = html.indexOf("-->", pos + 4);
+                pos = (e < 0) ? len : e + 3;
+                continue;
+            }
+            if ((pos + 1 < len) && ((html.charAt(pos+1) == '!') || (html.charAt(pos+1) == '?'))) {
+                int e = html.indexOf('>', pos);
+                pos = (e < 0) ? len : e + 1;
+                continue;
+            }
+
+            // Tag name
+            boolean end = (pos + 1 < len) && (html.charAt(pos+1) == '/');
+            int s = pos + (end ? 2 : 1);
+            int e = s;
+            while ((e < len) && isNameChar(html.charAt(e))) e++;
+            if (e == s) {
+                // A lone '<' is text
+                textStart = pos;
+                int lt = html.indexOf('<', pos + 1);
+                textEnd = pos = (lt < 0) ? len : lt;
+                return TEXT;
+            }
+            name = html.substring(s, e).toLowerCase();
+
+            // Find the end of the tag, skipping quoted values
+            int gt = tagEnd(e);
+            attrStart = e;
+            attrEnd = gt;
+            pos = (gt < len) ? gt + 1 : len;
+            if (end) return END;
+
+            // The contents of scripts and styles are not markup
+            if (name.equals("script") || name.equals("style")) {
+                int close = indexOfIgnoreCase("</" + name, pos);
+                textStart = textEnd = pos;
+                pos = (close < 0) ? len : close;
+            }
+            return START;
+
+        }
+        return EOF;
+    }
+
+    /**
+     * @return The lower-case name of the current tag
+     */
+    String name() {
+        return name;
+    }
+
+    /**
+     * Get an attribute of the current start tag
+     *
+     * @param key The lower-case attribute name
+     * @return The decoded value, empty for attributes without value, or null if missing
+     */
+    String attr(String key) {
+        int i = attrStart;
+        while (i < attrEnd) {
+
+            // Attribute name
+            while ((i < attrEnd) && !isNameChar(html.charAt(i))) i++;
+            int ns = i;
+            while ((i < attrEnd) && isNameChar(html.charAt(i))) i++;
+            if (ns == i) break;
+            boolean match = (i - ns == key.length()) && html.regionMatches(true, ns, key, 0, key.length());
+
+            // Optional value
+            while ((i < attrEnd) && Character.isWhitespace(html.charAt(i))) i++;
+            if ((i >= attrEnd) || (html.charAt(i) != '=')) {
+                if (match) return "";
+                continue;
+            }
+            i++;
+            while ((i < attrEnd) && Character.isWhitespace(html.charAt(i))) i++;
+            int vs, ve;
+            if ((i < attrEnd) && ((html.charAt(i) == '"') || (html.charAt(i) == '\''))) {
+                char q = html.charAt(i);
+                vs = i + 1;
+                ve = html.indexOf(q, vs);
+                if ((ve < 0) || (ve > attrEnd)) ve = attrEnd;
+                i = ve + 1;
+            } else {
+                vs = i;
+                while ((i < attrEnd) && !Character.isWhitespace(html.charAt(i)) && (html.charAt(i) != '/')) i++;
+                ve = i;
+            }
+            if (match) return decode(vs, ve);
+
+        }
+        return null;
+    }
+
+    /**
+     * Check if an attribute of the current start tag has the given value
+     */
+    boolean attrIs(String key, String value) {
+        return value.equals(attr(key));
+    }
+
+    /**
+     * Append the current text, decoded, to a buffer
+     * @param sb The buffer
+     */
+    void appendText(StringBuilder sb) {
+        sb.append(decode(textStart, textEnd));
+    }
+
+    /**
+     * Skip everything up to (and including) the end tag of the current
+     * start tag, and return the text in between.
+     *
+     * @return The text, with normalized white space
+     */
+    String elementText() {
+        String tag = name;
+        int depth = 1;
+        StringBuilder sb = new StringBuilder();
+        int t;
+        while ((t = next()) != EOF) {
+            if (t == TEXT) {
+                appendText(sb);
+            } else if (name.equals(tag)) {
+                if ((t == END) && (--depth == 0)) break;
+                if (t == START) depth++;
+            }
+        }
+        return normalize(sb);
+    }
+
+    /**
+     * Collapse white space runs to a single space and trim, as a browser
+     * would show the text
+     */
+    static String normalize(CharSequence s) {
+        StringBuilder sb = new StringBuilder(s.length());
+        boolean space = false;
+        for (int i=0; i<s.length(); i++) {
+            char c = s.charAt(i);
+            if (Character.isWhitespace(c)) {
+                space = (sb.length() > 0);
+            } else {
+                if (space) sb.append(' ');
+                space = false;
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Find the '>' that closes a tag, skipping quoted attribute values
+     */
+    private int tagEnd(int i) {
+        int len = html.length();
+        char q = 0;
+        for (; i < len; i++) {
+            char c = html.charAt(i);
+            if (q != 0) {
+                if (c == q) q = 0;
+            } else if ((c == '"') || (c == '\'')) {
+                q = c;
+            } else if (c == '>') {
+                return i;
+            }
+        }
+        return len;
+    }
+
+    private int indexOfIgnoreCase(String s, int from) {
+        for (int i = from; i + s.length() <= html.length(); i++) {
+            int lt = html.indexOf('<', i);
+            if (lt < 0) return -1;
+            if (html.regionMatches(true, lt, s, 0, s.length())) return lt;
+            i = lt;
+        }
+        return -1;
+    }
+
+    private static boolean isNameChar(char c) {
+        return Character.isLetterOrDigit(c) || (c == '-') || (c == '_') || (c == ':');
+    }
+
+    /**
+     * Decode the character references in a range of the page
+     */
+    private String decode(int s, int e) {
+        int amp = html.indexOf('&', s);
+        if ((amp < 0) || (amp >= e)) return html.substring(s, e);
+
+        StringBuilder sb = new StringBuilder(e - s);
+        int i = s;
+        while (i < e) {
+            char c = html.charAt(i);
+            if (c != '&') {
+                sb.append(c);
+                i++;
+                continue;
+            }
+            int semi = html.indexOf(';', i);
+            if ((semi < 0) || (semi >= e) || (semi - i > 10)) {
+                sb.append(c);
+                i++;
+                continue;
+            }
+            String ref = html.substring(i + 1, semi);
+            int cp = -1;
+            if (ref.startsWith("#x") || ref.startsWith("#X")) {
+                try { cp = Integer.parseInt(ref.substring(2), 16); } catch (NumberFormatException ex) { }
+            } else if (ref.startsWith("#")) {
+                try { cp = Integer.parseInt(ref.substring(1)); } catch (NumberFormatException ex) { }
+            } else if (ref.equals("amp")) {
+                cp = '&';
+            } else if (ref.equals("lt")) {
+                cp = '<';
+            } else if (ref.equals("gt")) {
+                cp = '>';
+            } else if (ref.equals("quot")) {
+                cp = '"';
+            } else if (ref.equals("apos")) {
+                cp = '\'';
+            } else if (ref.equals("nbsp")) {
+                cp = 0xa0;
+            }
+            if ((cp < 0) || !Character.isValidCodePoint(cp)) {
+                sb.append(c);
+                i++;
+                continue;
+            }
+            sb.appendCodePoint(cp);
+            i = semi + 1;
+        }
+        return sb.toString();
+    }
+
+}
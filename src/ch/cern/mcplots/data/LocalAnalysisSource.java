@@ -0,0 +1,181 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package ch.cern.mcplots.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Analysis source that reads a local Rivet source checkout or installation,
+ * without any network access.
+ *
+ * A tree is either a source checkout (src/Analyses/*.cc and
+ * data/anainfo/*.info), an install prefix (share/Rivet/*.info) or a folder
+ * with the .info files themselves. The root folder can be such a tree, in
+ * which case it's the only tag (with an empty revision), or contain one
+ * tree per tag in its sub-folders (the revision is the sub-folder name).
+ *
+ * @author icharala
+ */
+public class LocalAnalysisSource implements AnalysisSource {
+
+    /**
+     * The folders of the info files in a tree, in order of preference
+     */
+    private static final String[] INFO_FOLDERS = new String[] { "data/anainfo", "share/Rivet" };
+
+    /**
+     * The encoding of the info files
+     */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * The root folder
+     */
+    private final File root;
+
+    /**
+     * The folder with the info files of every revision, found when the
+     * analyses of the revision are listed
+     */
+    private final ConcurrentHashMap<String, File> infoFolders = new ConcurrentHashMap<>();
+
+    /**
+     * Create a source for the given folder
+     * @param root The tree, or the folder with one tree per tag
+     */
+    public LocalAnalysisSource(File root) {
+        this.root = root;
+    }
+
+    /**
+     * @return The folder of the tree of a revision
+     */
+    private File treeOf(String rev) {
+        return rev.isEmpty() ? root : new File(root, rev);
+    }
+
+    /**
+     * Get the folder with the info files of a revision, looking for it
+     * only the first time
+     * @return The folder or null if it's not a tree
+     */
+    private File infoFolderOf(String rev) {
+        File info = infoFolders.get(rev);
+        if (info == null) {
+            info = infoFolder(treeOf(rev));
+            if (info != null) infoFolders.put(rev, info);
+        }
+        return info;
+    }
+
+    /**
+     * Find the folder with the info files of a tree
+     * @return The folder or null if it's not a tree
+     */
+    private static File infoFolder(File tree) {
+        for (String f: INFO_FOLDERS) {
+            File dir = new File(tree, f);
+            if (dir.isDirectory()) return dir;
+        }
+        return list(tree, ".info").isEmpty() ? null : tree;
+    }
+
+    /**
+     * List the names (without extension) of the files with the given extension
+     */
+    private static ArrayList<String> list(File dir, String ext) {
+        ArrayList<String> ans = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir.toPath(), "*" + ext)) {
+            for (Path f: files) {
+                String name = f.getFileName().toString();
+                ans.add(name.substring(0, name.length() - ext.length()));
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(LocalAnalysisSource.class.getName()).log(Level.WARNING, "Unable to list " + dir, ex);
+        }
+        return ans;
+    }
+
+    @Override
+    public HashMap<String, String> getTags() {
+        HashMap<String, String> ans = new HashMap<>();
+        if (infoFolder(root) != null) {
+            ans.put(root.getAbsoluteFile().getName(), "");
+            return ans;
+        }
+
+        File[] dirs = root.listFiles();
+        if (dirs == null) return null;
+        for (File d: dirs) {
+            if (d.isDirectory() && !d.getName().startsWith(".") && (infoFolder(d) != null)) {
+                ans.put(d.getName(), d.getName());
+            }
+        }
+        return ans;
+    }
+
+    @Override
+    public ArrayList<String> listAnalyses(String rev) {
+        File tree = treeOf(rev);
+
+        // Look for the info folder again, the tree may have changed
+        infoFolders.remove(rev);
+
+        // Source checkouts have the code of every analysis
+        File src = new File(tree, "src/Analyses");
+        if (src.isDirectory()) {
+            return list(src, ".cc");
+        }
+
+        // Installations only have the data files
+        File info = infoFolderOf(rev);
+        return (info == null) ? null : list(info, ".info");
+    }
+
+    @Override
+    public String readAnalysisInfo(String name, String rev, String sameAsRev) throws IOException {
+        File info = infoFolderOf(rev);
+        if (info == null) return "";
+        try {
+            return new String(Files.readAllBytes(new File(info, name + ".info").toPath()), UTF8);
+        } catch (NoSuchFileException ex) {
+            return "";
+        }
+    }
+
+    @Override
+    public Map<String, String> getInfoRevisions(String rev) {
+        // Local files have no history
+        return null;
+    }
+
+    @Override
+    public InputStream openArchive(String rev) {
+        // The files are read directly
+        return null;
+    }
+
+    @Override
+    public String getCacheId() {
+        // Local files can be modified at any time
+        return null;
+    }
+
+}
@@ -6,17 +6,36 @@
 
 package ch.cern.mcplots.data;
 
-import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.MappedByteBuffer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
 
 /**
  * Helper class for accessing rivet-histograms.map
@@ -25,45 +44,40 @@ import java.util.regex.Pattern;
 public class RivetHistograms {
 
     /**
-     * Regular expression for parsing the configuration lines.
-     * It scans patterns according to the following pattern:
-     * 
-     * [#][beam] [process] [energy] [params] [analysis_histogram] [observable] [cuts]
-     *  1    2       3         4        5             6                 7        8
+     * Size of the buffer used when saving the file
      */
-    private static final Pattern rxLineParser = 
-            Pattern.compile("^(#?)\\s*([a-z\\-]+)\\s+([\\w\\-]+)\\s+([0-9\\.]+)\\s+([\\w\\-\\.',]+)\\s+([\\w\\-\\.]+)\\s+([\\w\\-\\.]+)\\s+([\\w\\-\\.]+)$");
-    
+    private static final int WRITE_BUFFER_SIZE = 256 * 1024;
+
     /**
      * Smaller class that expands the [params] configuration
      */
     public static class DataParams {
-        String pTmin;
-        String pTmax;
-        String mHatMin;
-        String mHatMax;
-        Boolean defined;
+        final String pTmin;
+        final String pTmax;
+        final String mHatMin;
+        final String mHatMax;
+        final Boolean defined;
         
         private final int numDefined;
 
         /**
-         * Crate a parameters class from parameters string
+         * Crate a parameters class from parameters string.
+         * The instances are immutable, so they can be shared between entries.
          * @param params 
          */
         public DataParams(String params) {
             if (params.isEmpty() || params.equals("-")) {
                 defined = false;
                 numDefined = 0;
+                pTmin = pTmax = mHatMin = mHatMax = null;
             } else {
                 String[] parts = params.split(",");
-                pTmin = parts[0];
+                defined = true;
                 numDefined = parts.length;
-                if (parts.length > 1)
-                    pTmax = parts[1];
-                if (parts.length > 2)
-                    mHatMin = parts[2];
-                if (parts.length > 3)
-                    mHatMax = parts[3];
+                pTmin = parts[0];
+                pTmax = (parts.length > 1) ? parts[1] : null;
+                mHatMin = (parts.length > 2) ? parts[2] : null;
+                mHatMax = (parts.length > 3) ? parts[3] : null;
             }
         }
 
@@ -73,18 +87,26 @@ public class RivetHistograms {
          */
         @Override
         public String toString() {
+            return appendTo(new StringBuilder(16)).toString();
+        }
+        
+        /**
+         * Append the parameters string to the given buffer
+         * @param sb The buffer
+         * @return The buffer
+         */
+        StringBuilder appendTo(StringBuilder sb) {
             if (!defined) {
-                return "-";
-            } else {
-                String ans = pTmin;
-                if (numDefined > 1)
-                    ans += ","+pTmax;
-                if (numDefined > 2)
-                    ans += ","+mHatMin;
-                if (numDefined > 3)
-                    ans += ","+mHatMax;
-                return ans;
+                return sb.append('-');
             }
+            sb.append(pTmin);
+            if (numDefined > 1)
+                sb.append(',').append(pTmax);
+            if (numDefined > 2)
+                sb.append(',').append(mHatMin);
+            if (numDefined > 3)
+                sb.append(',').append(mHatMax);
+            return sb;
         }
         
     }
@@ -103,49 +125,94 @@ public class RivetHistograms {
         String cuts;
         Boolean enabled;
 
-        public Data(Matcher lineMatcher) {
-                           
-            // Check if the line is enabled
-            String hashLine = lineMatcher.group(1).trim();
-            enabled = hashLine.isEmpty();
-
-            // Get straight-forward parts
-            beam = lineMatcher.group(2);
-            process = lineMatcher.group(3);
-            energy = lineMatcher.group(4);
-            params = new DataParams(lineMatcher.group(5));
-            observable = lineMatcher.group(7);
-            cuts = lineMatcher.group(8);
-            
-            // Split/parse [analysis_histogram] group, that follows
-            // the Rivet configuration.
-            String analysis_histogram = lineMatcher.group(6);
-            String parts[] = analysis_histogram.split("_");
-            histogram = parts[parts.length-1];
-            analysis = analysis_histogram.substring(0, analysis_histogram.length()-histogram.length()-1);
-            
+        /**
+         * Create a data entry from the columns of a configuration line
+         * 
+         * @param enabled FALSE if the line is commented-out
+         * @param beam The [beam] column
+         * @param process The [process] column
+         * @param energy The [energy] column
+         * @param params The parsed [params] column
+         * @param analysis The analysis part of [analysis_histogram]
+         * @param histogram The histogram part of [analysis_histogram]
+         * @param observable The [observable] column
+         * @param cuts The [cuts] column
+         */
+        public Data(boolean enabled, String beam, String process, String energy, DataParams params,
+                    String analysis, String histogram, String observable, String cuts) {
+            this.enabled = enabled;
+            this.beam = beam;
+            this.process = process;
+            this.energy = energy;
+            this.params = params;
+            this.analysis = analysis;
+            this.histogram = histogram;
+            this.observable = observable;
+            this.cuts = cuts;
         }
 
         @Override
         public String toString() {
-            String ans = "";
+            return appendTo(new StringBuilder(128)).toString();
+        }
+        
+        /**
+         * Append the configuration line of this entry to the given buffer
+         * @param sb The buffer
+         * @return The buffer
+         */
+        StringBuilder appendTo(StringBuilder sb) {
             
             // Start with disabled hash
             if (!enabled)
-                ans = "#";
+                sb.append('#');
             
-            // Continue with elements
-            ans += String.format("%-9s", beam) + " ";
-            ans += String.format("%-13s", process) + " ";
-            ans += String.format("%-10s", energy) + " ";
-            ans += String.format("%-11s", params.toString()) + " ";
-            String histo_analysis = analysis + "_" + histogram;
-            ans += String.format("%-33s", histo_analysis) + " ";
-            ans += String.format("%-15s", observable) + " ";
-            ans += cuts;
+            // Continue with elements, padded to their column width
+            int col = sb.length();
+            sb.append(beam);
+            pad(sb, col + 9).append(' ');
+            col = sb.length();
+            sb.append(process);
+            pad(sb, col + 13).append(' ');
+            col = sb.length();
+            sb.append(energy);
+            pad(sb, col + 10).append(' ');
+            col = sb.length();
+            params.appendTo(sb);
+            pad(sb, col + 11).append(' ');
+            col = sb.length();
+            sb.append(analysis).append('_').append(histogram);
+            pad(sb, col + 33).append(' ');
+            col = sb.length();
+            sb.append(observable);
+            pad(sb, col + 15).append(' ');
+            sb.append(cuts);
             
-            // Return formatted string
-            return ans;
+            return sb;
+        }
+        
+        /**
+         * Get the columns of this entry separated by single spaces, without
+         * the leading hash. Lines with the same key describe the same entry.
+         * @return The key
+         */
+        String key() {
+            StringBuilder sb = new StringBuilder(96);
+            sb.append(beam).append(' ').append(process).append(' ').append(energy).append(' ');
+            params.appendTo(sb).append(' ');
+            sb.append(analysis).append('_').append(histogram).append(' ');
+            sb.append(observable).append(' ').append(cuts);
+            return sb.toString();
+        }
+        
+        /**
+         * Pad the buffer with spaces up to the given length
+         */
+        private static StringBuilder pad(StringBuilder sb, int length) {
+            while (sb.length() < length) {
+                sb.append(' ');
+            }
+            return sb;
         }
         
     }
@@ -156,19 +223,139 @@ public class RivetHistograms {
     public static class DataGroup {
         String comment;
         ArrayList<Data> values;
+        
+        /**
+         * The offset of the group in the file (or -1 if not saved yet)
+         */
+        long offset;
+        
+        /**
+         * TRUE if the group was modified since it was loaded or saved
+         */
+        boolean dirty;
 
         public DataGroup() {
             comment = "";
             values = new ArrayList<>();
+            offset = -1;
+            dirty = false;
+        }
+        
+    }
+
+    /**
+     * The differences of the data entries between two versions of the file
+     */
+    public static class Diff {
+        
+        /**
+         * The entries that did not exist before
+         */
+        public final ArrayList<Data> added = new ArrayList<>();
+        
+        /**
+         * The entries that do not exist any more
+         */
+        public final ArrayList<Data> removed = new ArrayList<>();
+        
+        /**
+         * The entries that were enabled or disabled
+         */
+        public final ArrayList<Data> toggled = new ArrayList<>();
+        
+        /**
+         * @return TRUE if no entry changed
+         */
+        public boolean isEmpty() {
+            return added.isEmpty() && removed.isEmpty() && toggled.isEmpty();
         }
         
     }
 
+    /**
+     * Receiver of the modifications of the data entries
+     */
+    public static interface ChangeListener {
+        
+        /**
+         * All the data groups were replaced (ex. after load)
+         */
+        public void histogramsLoaded( RivetHistograms histograms );
+        
+        /**
+         * The file was modified on disk and reloaded. The data groups were
+         * replaced, but the unchanged entries are the same objects as before.
+         */
+        public void histogramsChanged( RivetHistograms histograms, Diff diff );
+        
+        public void entryAdded( DataGroup group, Data entry );
+        public void entryRemoved( DataGroup group, Data entry );
+        public void entryToggled( DataGroup group, Data entry );
+        
+    }
+    
+    /**
+     * The columns of the data entries
+     */
+    public static enum Column {
+        BEAM, PROCESS, ENERGY, PARAMS, ANALYSIS, HISTOGRAM, OBSERVABLE, CUTS;
+        
+        /**
+         * Get the value of this column from a data entry
+         * @param d The data entry
+         * @return The value of the column
+         */
+        public String of(Data d) {
+            switch (this) {
+                case BEAM: return d.beam;
+                case PROCESS: return d.process;
+                case ENERGY: return d.energy;
+                case PARAMS: return d.params.toString();
+                case ANALYSIS: return d.analysis;
+                case HISTOGRAM: return d.histogram;
+                case OBSERVABLE: return d.observable;
+                default: return d.cuts;
+            }
+        }
+    }
+    
     /**
      * Data groups in the file
      */
     public ArrayList<DataGroup> dataGroups;
     
+    /**
+     * The receivers of the modifications
+     */
+    private final ArrayList<ChangeListener> listeners = new ArrayList<>();
+    
+    /**
+     * The secondary index of the entries (created on demand)
+     */
+    private HistogramIndex index;
+    
+    /**
+     * The groups, in the order they are in the file on disk
+     */
+    private ArrayList<DataGroup> savedGroups = new ArrayList<>();
+    
+    /**
+     * The size and modification time of the file on disk, when it was
+     * last loaded or saved
+     */
+    private long savedSize = -1, savedModified = -1;
+    
+    /**
+     * The CRC-32 of the file on disk, when it was last loaded or saved
+     * (or -1 if not known)
+     */
+    private long savedChecksum = -1;
+    
+    /**
+     * The way the file was loaded
+     */
+    private LoadMode loadMode = LoadMode.BUFFERED;
+    
     /**
      * Heading comment
      */
@@ -178,6 +365,11 @@ public class RivetHistograms {
      * Configuration file
      */
     private final File configFile;
+    
+    /**
+     * The binary snapshot of the configuration file (or null)
+     */
+    private File snapshotFile;
 
     /**
      * Constructor for RivetHistograms class
@@ -187,147 +379,772 @@ public class RivetHistograms {
         dataGroups = new ArrayList<>();
     }
     
+    /**
+     * The ways the configuration file can be loaded
+     */
+    public static enum LoadMode {
+        
+        /**
+         * Read and decode the entire file in memory
+         */
+        BUFFERED,
+        
+        /**
+         * Memory-map the file and parse the ASCII bytes in place. Strings
+         * are only created for the comments and once for every distinct
+         * column value, so large files open with a small heap.
+         * 
+         * Note that on Windows the file can not be replaced while it is
+         * still mapped, i.e. until the buffer is garbage-collected.
+         */
+        MAPPED
+        
+    }
+    
+    /**
+     * The ways the configuration file can be parsed
+     */
+    public static enum ParseMode {
+        
+        /**
+         * Parse the file in a single pass on the calling thread
+         */
+        SEQUENTIAL,
+        
+        /**
+         * Split the file at blank lines and parse the chunks on all cores
+         */
+        PARALLEL
+        
+    }
+    
+    /**
+     * The pool the chunks of the file are parsed on in PARALLEL mode
+     */
+    private static ForkJoinPool parsePool;
+    
+    /**
+     * The way the file is parsed
+     */
+    private ParseMode parseMode = ParseMode.SEQUENTIAL;
+    
+    /**
+     * Select the way the configuration file is parsed by load()
+     * @param mode The parse mode
+     */
+    public void setParseMode(ParseMode mode) {
+        parseMode = mode;
+    }
+    
+    /**
+     * @return The shared pool for parsing in parallel
+     */
+    private static synchronized ForkJoinPool getParsePool() {
+        if (parsePool == null) {
+            parsePool = new ForkJoinPool();
+        }
+        return parsePool;
+    }
+    
+    /**
+     * Load the configuration file
+     * @throws IOException 
+     */
     public void load() throws IOException {
+        load(LoadMode.BUFFERED);
+    }
+    
+    /**
+     * Load the configuration file
+     * @param mode The way to read the file
+     * @throws IOException 
+     */
+    public synchronized void load(LoadMode mode) throws IOException {
+        loadMode = mode;
         
-        // Do I/O Operations in safe context
-        FileReader fReader = null;
-        try {
-            
-            fReader = new FileReader(configFile);
-            BufferedReader bReader = new BufferedReader(fReader);
+        // Use the snapshot if the file did not change since
+        HistogramsSnapshot snapshot = readSnapshot();
+        if (snapshot != null) {
+            headingComment = snapshot.headingComment;
+            dataGroups.clear();
+            dataGroups.addAll(snapshot.groups);
+            savedGroups = new ArrayList<>(dataGroups);
+            savedSize = snapshot.endOffset;
+            savedModified = snapshot.modified;
+            savedChecksum = snapshot.checksum;
+        } else {
             
-            // Possition/indexing
-            Boolean pReadingHeadingComment = true;
-            DataGroup pCurrentGroup = null;
+            // Parse the contents
+            replaceGroups(parse(mode, null));
+            writeSnapshot();
             
-            // Reset buffers
-            headingComment = "";
-            dataGroups.clear();
+        }
+        
+        // Let everyone know
+        for (ChangeListener l: listeners) {
+            l.histogramsLoaded(this);
+        }
+
+    }
+    
+    /**
+     * Load again the configuration file if it was modified on disk, for
+     * example by another tool.
+     * 
+     * Every line is split again, but the entries of the unchanged lines
+     * are re-used as they are, instead of creating new ones. The listeners
+     * receive the differences through histogramsChanged(). Modifications
+     * that were not saved yet are lost.
+     * 
+     * Like the modification functions, it must be called on the thread
+     * that owns the histograms (the event dispatch thread in the editor).
+     * 
+     * @return The differences (empty if the file was not modified)
+     * @throws IOException 
+     */
+    public synchronized Diff reload() throws IOException {
+        Diff diff = new Diff();
+        Path file = configFile.toPath();
+        if ((Files.size(file) == savedSize) && (Files.getLastModifiedTime(file).toMillis() == savedModified)) {
+            return diff;
+        }
+        
+        // Collect the current entries by line
+        IdentityHashMap<Data, Boolean> oldEntries = new IdentityHashMap<>();
+        HashMap<String, ArrayDeque<Data>> previous = new HashMap<>();
+        for (DataGroup g: dataGroups) {
+            for (Data d: g.values) {
+                oldEntries.put(d, Boolean.TRUE);
+                String key = d.key();
+                ArrayDeque<Data> same = previous.get(key);
+                if (same == null) {
+                    same = new ArrayDeque<>(1);
+                    previous.put(key, same);
+                }
+                same.add(d);
+            }
+        }
+        
+        // Parse the new contents, re-using the unchanged entries
+        HistogramsParser parser = parse(loadMode, previous);
+        diff.toggled.addAll(parser.getToggled());
+        for (DataGroup g: parser.getGroups()) {
+            for (Data d: g.values) {
+                if (oldEntries.remove(d) == null) {
+                    diff.added.add(d);
+                }
+            }
+        }
+        diff.removed.addAll(oldEntries.keySet());
+        
+        // Replace buffers
+        replaceGroups(parser);
+        writeSnapshot();
+        
+        // Let everyone know
+        if (!diff.isEmpty()) {
+            for (ChangeListener l: listeners) {
+                l.histogramsChanged(this, diff);
+            }
+        }
+        return diff;
+        
+    }
+    
+    /**
+     * Read and parse the configuration file
+     * @param mode The way to read the file
+     * @param previous The entries to re-use for the unchanged lines (or null)
+     * @return The parser with the results
+     * @throws IOException 
+     */
+    private HistogramsParser parse(LoadMode mode, Map<String, ArrayDeque<Data>> previous) throws IOException {
+        
+        // Get the contents of the file, and their checksum for the snapshot.
+        // The time is taken first, so a modification while reading makes
+        // the snapshot look outdated instead of valid.
+        CharSequence text;
+        long size, crc = -1;
+        try {
+            savedModified = Files.getLastModifiedTime(configFile.toPath()).toMillis();
+            if (mode == LoadMode.MAPPED) {
+                try (FileChannel ch = FileChannel.open(configFile.toPath(), StandardOpenOption.READ)) {
+                    MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+                    size = buf.remaining();
+                    if (snapshotFile != null) crc = HistogramsSnapshot.checksum(buf);
+                    text = new AsciiSequence(buf, Charset.defaultCharset());
+                }
+            } else {
+                byte[] contents = Files.readAllBytes(configFile.toPath());
+                size = contents.length;
+                if (snapshotFile != null) crc = HistogramsSnapshot.checksum(ByteBuffer.wrap(contents));
+                text = Charset.defaultCharset().decode(ByteBuffer.wrap(contents));
+            }
+        } catch (NoSuchFileException ex) {
+            Logger.getLogger(RivetHistograms.class.getName()).log(Level.SEVERE, null, ex);
+            throw ex;
+        }
+        
+        // Parse the contents (re-using entries only works sequentially)
+        HistogramsParser parser = new HistogramsParser(new TokenPool(), (mode == LoadMode.MAPPED) ? null : Charset.defaultCharset());
+        if ((parseMode == ParseMode.PARALLEL) && (previous == null)) {
+            ForkJoinPool pool = getParsePool();
+            savedSize = parser.parseParallel(text, 0, text.length(), pool, pool.getParallelism() * 4);
+        } else {
+            parser.reuse(previous);
+            savedSize = parser.parse(text, 0, text.length());
+        }
+        
+        // The offsets are of no use if they don't add up to the file
+        savedChecksum = (savedSize == size) ? crc : -1;
+        return parser;
+        
+    }
+    
+    /**
+     * Replace the data groups with the parsed ones
+     */
+    private void replaceGroups(HistogramsParser parser) {
+        headingComment = parser.getHeadingComment();
+        dataGroups.clear();
+        dataGroups.addAll(parser.getGroups());
+        savedGroups = new ArrayList<>(dataGroups);
+    }
+    
+    /**
+     * Register a receiver of the modifications
+     * @param l The listener
+     */
+    public void addChangeListener(ChangeListener l) {
+        listeners.add(l);
+    }
+    
+    /**
+     * Unregister a receiver of the modifications
+     * @param l The listener
+     */
+    public void removeChangeListener(ChangeListener l) {
+        listeners.remove(l);
+    }
+    
+    /**
+     * Get the secondary index of the entries. It is built on first use
+     * and kept up to date by the modification functions below.
+     * 
+     * @return The index
+     */
+    public HistogramIndex getIndex() {
+        if (index == null) {
+            index = new HistogramIndex();
+            index.histogramsLoaded(this);
+            addChangeListener(index);
+        }
+        return index;
+    }
+    
+    /**
+     * Add a data entry in a group
+     * @param group The group (must be one of dataGroups)
+     * @param entry The data entry
+     */
+    public void addEntry(DataGroup group, Data entry) {
+        group.values.add(entry);
+        group.dirty = true;
+        for (ChangeListener l: listeners) {
+            l.entryAdded(group, entry);
+        }
+    }
+    
+    /**
+     * Remove a data entry from a group
+     * @param group The group the entry belongs to
+     * @param entry The data entry
+     */
+    public void removeEntry(DataGroup group, Data entry) {
+        if (!group.values.remove(entry)) return;
+        group.dirty = true;
+        for (ChangeListener l: listeners) {
+            l.entryRemoved(group, entry);
+        }
+    }
+    
+    /**
+     * Enable or disable (comment-out) a data entry
+     * @param group The group the entry belongs to
+     * @param entry The data entry
+     * @param enabled The new state
+     */
+    public void setEnabled(DataGroup group, Data entry, boolean enabled) {
+        if (entry.enabled == enabled) return;
+        entry.enabled = enabled;
+        group.dirty = true;
+        for (ChangeListener l: listeners) {
+            l.entryToggled(group, entry);
+        }
+    }
+    
+    /**
+     * Save the configuration file.
+     * 
+     * If only some groups were modified (through addEntry, removeEntry or
+     * setEnabled) since the file was loaded or saved, and the file was not
+     * changed by someone else, only those regions of the file are rewritten.
+     * Otherwise the entire file is written from scratch.
+     * 
+     * @throws IOException 
+     */
+    public synchronized void save() throws IOException {
+        if (!saveDirtyGroups()) {
+            saveAll();
+        }
+        writeSnapshot();
+    }
+    
+    /**
+     * Select where the binary snapshot of the configuration file is kept.
+     * 
+     * The snapshot has the parsed contents of the file, so load() can skip
+     * parsing the text while the file does not change. It is updated every
+     * time the file is parsed or saved. The text file is always the one
+     * that counts; the snapshot is ignored as soon as they differ.
+     * 
+     * Snapshots are not used unless a file is selected here.
+     * 
+     * @param file The snapshot file, or null to not use snapshots
+     */
+    public void setSnapshotFile(File file) {
+        snapshotFile = file;
+    }
+    
+    /**
+     * Read the snapshot, if it's still valid
+     * @return The snapshot or null
+     */
+    private HistogramsSnapshot readSnapshot() {
+        if (snapshotFile == null) return null;
+        try {
+            return HistogramsSnapshot.read(snapshotFile.toPath(), configFile.toPath(), Charset.defaultCharset());
+        } catch (IOException ex) {
+            Logger.getLogger(RivetHistograms.class.getName()).log(Level.WARNING, "Unable to read snapshot " + snapshotFile, ex);
+            return null;
+        }
+    }
+    
+    /**
+     * Update the snapshot with the current contents
+     */
+    private void writeSnapshot() {
+        if ((snapshotFile == null) || (savedChecksum < 0)) return;
+        try {
+            HistogramsSnapshot.write(snapshotFile.toPath(), configFile.toPath(), savedModified, savedChecksum,
+                    Charset.defaultCharset(), headingComment, dataGroups, savedSize);
+        } catch (IOException ex) {
+            Logger.getLogger(RivetHistograms.class.getName()).log(Level.WARNING, "Unable to write snapshot " + snapshotFile, ex);
+        }
+    }
+    
+    /**
+     * Save the entire configuration file.
+     * 
+     * The contents are written to a temporary file next to the configuration
+     * file, which then atomically replaces it. A crash in the middle of the
+     * save never leaves a truncated configuration file.
+     * 
+     * @throws IOException 
+     */
+    private void saveAll() throws IOException {
+        Path target = targetFile();
+        Path tmp = createTempFor(target);
+        long size;
+        CRC32 crc = new CRC32();
+        try {
             
-            // Start reading source file
-            String line;
-            while ( (line = bReader.readLine()) != null ) {
+            // Write everything to the temporary file
+            try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                Writer fWriter = new BufferedWriter(new OutputStreamWriter(
+                        new CheckedOutputStream(Channels.newOutputStream(ch), crc), Charset.defaultCharset()), WRITE_BUFFER_SIZE);
+                size = write(fWriter);
+                fWriter.flush();
                 
-                // Trim excess whitespace
-                line = line.trim();
-                
-                // Run regex matcher for this line
-                Matcher matcher = rxLineParser.matcher(line);
+                // Make sure it's on disk before replacing the original
+                ch.force(true);
+            }
+            
+            // Replace the configuration file
+            replace(tmp, target);
+            
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        
+        // Everything is now in sync
+        for (DataGroup g: dataGroups) {
+            g.dirty = false;
+        }
+        savedGroups = new ArrayList<>(dataGroups);
+        savedSize = size;
+        savedModified = Files.getLastModifiedTime(target).toMillis();
+        savedChecksum = crc.getValue();
+    }
+    
+    /**
+     * Save only the modified groups, if possible.
+     * 
+     * Everything up to the first modified group and between the modified
+     * groups is copied as-is from the old file, and the result atomically
+     * replaces it. Inside the modified groups only the lines of the added,
+     * removed or toggled entries change; comments, blank and unparsable
+     * lines and the line terminators are kept byte for byte.
+     * 
+     * @return FALSE if the entire file must be saved instead
+     * @throws IOException 
+     */
+    private boolean saveDirtyGroups() throws IOException {
+        Path target = targetFile();
+        
+        // The groups must be the ones on disk, in the same order
+        if (!dataGroups.equals(savedGroups) || !Files.isRegularFile(target)
+                || (Files.size(target) != savedSize)
+                || (Files.getLastModifiedTime(target).toMillis() != savedModified)) {
+            return false;
+        }
+        
+        // Nothing to do if nothing changed
+        boolean changed = false;
+        for (DataGroup g: dataGroups) {
+            if (g.offset < 0) return false;
+            changed |= g.dirty;
+        }
+        if (!changed) return true;
+        
+        // Splice the modified groups into a copy of the file
+        Charset cs = Charset.defaultCharset();
+        CRC32 crc = new CRC32();
+        Path tmp = createTempFor(target);
+        try {
+            try (FileChannel in = FileChannel.open(target, StandardOpenOption.READ);
+                 FileChannel out = FileChannel.open(tmp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
                 
-                // Process comment cases
-                if (line.startsWith("#")) {
-                    
-                    // Update heading comment
-                    if (pReadingHeadingComment) {
-                        headingComment += line + "\n";
-                    }
+                long copyFrom = 0, shift = 0;
+                for (int i=0; i<dataGroups.size(); i++) {
+                    DataGroup g = dataGroups.get(i);
+                    long start = g.offset, end = regionEnd(i);
+                    g.offset += shift;
+                    if (!g.dirty) continue;
                     
-                    // Check if the line is actually a commented-out data line
-                    else if (matcher.matches()) {
-                        
-                        // Create new section if we don't have any active
-                        if (pCurrentGroup == null)
-                            pCurrentGroup = new DataGroup();
-                        
-                        // Add data value
-                        pCurrentGroup.values.add( new Data(matcher) );
-                        
-                    }
+                    // Copy the unchanged bytes before the group
+                    copyFully(in, copyFrom, start - copyFrom, out, crc);
+                    byte[] region = new byte[(int) (end - start)];
+                    readFully(in, ByteBuffer.wrap(region), start);
+                    byte[] merged = mergeGroup(g, region, cs);
+                    writeFully(out, ByteBuffer.wrap(merged), out.position());
+                    crc.update(merged);
+                    copyFrom = end;
+                    shift += merged.length - region.length;
                     
-                    // Update section comment
-                    else {
-                        
-                        // Commit active section (assuming no space was in between.)
-                        if ((pCurrentGroup != null) && (pCurrentGroup.values.size() > 0)) {
-                            dataGroups.add(pCurrentGroup);
-                            pCurrentGroup = null;
-                        }
-                        
-                        // Create new section if we don't have any active
-                        if (pCurrentGroup == null)
-                            pCurrentGroup = new DataGroup();
-                        
-                        // Update current group sections
-                        pCurrentGroup.comment += line + "\n";
-                        
-                    }
                 }
                 
-                // Process whitespace cases
-                else if (line.isEmpty()) {
-                    
-                    // Quit heading comment on the first empty line
-                    if (pReadingHeadingComment) {
-                        pReadingHeadingComment = false;
-                    }
-                    
-                    // Commit active section (split on space)
-                    if ((pCurrentGroup != null) && (pCurrentGroup.values.size() > 0)) {
-                        dataGroups.add(pCurrentGroup);
-                        pCurrentGroup = null;
-                    }
-                    
-                }
+                // Copy the unchanged tail
+                copyFully(in, copyFrom, savedSize - copyFrom, out, crc);
+                out.force(true);
+                savedSize += shift;
                 
-                // Process data cases
-                else {
-                    
-                    // Check if line matches
-                    if (matcher.matches()) {
-
-                        // Create new section if we don't have any active
-                        if (pCurrentGroup == null)
-                            pCurrentGroup = new DataGroup();
-
-                        // Add data value
-                        pCurrentGroup.values.add( new Data(matcher) );
-
-                    } else {
-                        Logger.getLogger(RivetHistograms.class.getName()).log(Level.WARNING, "Unparsable line: ", line);
-                    }
-                    
+            }
+            replace(tmp, target);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        
+        // Everything is now in sync
+        for (DataGroup g: dataGroups) {
+            g.dirty = false;
+        }
+        savedModified = Files.getLastModifiedTime(target).toMillis();
+        savedChecksum = crc.getValue();
+        return true;
+        
+    }
+    
+    /**
+     * Apply the modifications of a group to its region of the file.
+     * 
+     * The data lines of the region are matched, in order, with the entries
+     * of the group that have the same key. The lines of the removed entries
+     * are dropped, the toggled entries are written again, and the added
+     * entries are written after the last data line, with the same line
+     * terminator. All the other lines are kept as they are.
+     * 
+     * @param g The group
+     * @param region The bytes of the group in the file on disk
+     * @param cs The charset of the file
+     * @return The new bytes of the region
+     */
+    private static byte[] mergeGroup(DataGroup g, byte[] region, Charset cs) {
+        
+        // The current entries by key
+        HashMap<String, ArrayDeque<Data>> current = new HashMap<>();
+        for (Data d: g.values) {
+            String key = d.key();
+            ArrayDeque<Data> same = current.get(key);
+            if (same == null) {
+                same = new ArrayDeque<>(1);
+                current.put(key, same);
+            }
+            same.add(d);
+        }
+        
+        // Find the data lines and the entries they belong to
+        CharSequence text = new AsciiSequence(ByteBuffer.wrap(region), cs);
+        HistogramsParser parser = new HistogramsParser(new TokenPool(), null);
+        IdentityHashMap<Data, Boolean> kept = new IdentityHashMap<>();
+        ArrayList<int[]> lines = new ArrayList<>();
+        ArrayList<Data> entries = new ArrayList<>();
+        int lastData = -1;
+        int pos = 0, len = region.length;
+        while (pos < len) {
+            int eol = HistogramsParser.lineEnd(text, pos, len);
+            int next = HistogramsParser.nextLine(text, eol, len);
+            String key = parser.lineKey(text, pos, eol);
+            Data d = null;
+            if (key != null) {
+                ArrayDeque<Data> same = current.get(key);
+                d = (same == null) ? null : same.poll();
+                if (d != null) kept.put(d, Boolean.TRUE);
+                lastData = lines.size();
+            }
+            lines.add(new int[] { pos, eol, next, (key == null) ? 0 : 1 });
+            entries.add(d);
+            pos = next;
+        }
+        
+        // Use the line terminator of the data lines for the new lines
+        String eol = System.lineSeparator();
+        int ref = (lastData >= 0) ? lastData : lines.size() - 1;
+        if ((ref >= 0) && (lines.get(ref)[2] > lines.get(ref)[1])) {
+            int[] l = lines.get(ref);
+            eol = new String(region, l[1], l[2] - l[1], cs);
+        }
+        
+        // Write the region again
+        ByteArrayOutputStream ans = new ByteArrayOutputStream(region.length + 256);
+        StringBuilder sb = new StringBuilder(128);
+        for (int i=0; i<lines.size(); i++) {
+            int[] l = lines.get(i);
+            Data d = entries.get(i);
+            if (l[3] == 0) {
+                ans.write(region, l[0], l[2] - l[0]);
+            } else if (d != null) {
+                boolean enabled = (text.charAt(HistogramsParser.skipSpace(text, l[0], l[1])) != '#');
+                if (enabled == d.enabled) {
+                    ans.write(region, l[0], l[2] - l[0]);
+                } else {
+                    sb.setLength(0);
+                    d.appendTo(sb).append(text, l[1], l[2]);
+                    writeBytes(ans, sb, cs);
                 }
-                
             }
-
-            // Commit active section (without end-line space)
-            if ((pCurrentGroup != null) && (pCurrentGroup.values.size() > 0))
-                dataGroups.add(pCurrentGroup);
             
-            // Close reader
-            fReader.close();
-            
-        } catch (FileNotFoundException ex) {
-            Logger.getLogger(RivetHistograms.class.getName()).log(Level.SEVERE, null, ex);
-            throw ex;
+            // Add the new entries after the last data line
+            if (i == lastData) {
+                sb.setLength(0);
+                if (l[2] == l[1]) sb.append(eol);
+                for (Data n: g.values) {
+                    if (!kept.containsKey(n)) n.appendTo(sb).append(eol);
+                }
+                writeBytes(ans, sb, cs);
+            }
+        }
+        return ans.toByteArray();
+        
+    }
+    
+    /**
+     * Encode and append a string to a buffer
+     */
+    private static void writeBytes(ByteArrayOutputStream out, CharSequence s, Charset cs) {
+        ByteBuffer b = cs.encode(CharBuffer.wrap(s));
+        out.write(b.array(), b.arrayOffset() + b.position(), b.remaining());
+    }
+    
+    /**
+     * Get the file that is actually written when saving. If the configuration
+     * file is a symbolic link, its target is replaced and the link is kept.
+     * 
+     * @return The real path of the configuration file (or the absolute path
+     *         if it does not exist yet)
+     */
+    private Path targetFile() throws IOException {
+        Path path = configFile.toPath().toAbsolutePath();
+        try {
+            return path.toRealPath();
+        } catch (NoSuchFileException ex) {
+            return path;
+        }
+    }
+    
+    /**
+     * Create the temporary file that will replace the target, with the
+     * same permissions (and owner, where allowed) as the target
+     * 
+     * @param target The file to be replaced
+     * @return The temporary file, next to the target
+     * @throws IOException 
+     */
+    private static Path createTempFor(Path target) throws IOException {
+        Path tmp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+        PosixFileAttributeView view = Files.getFileAttributeView(tmp, PosixFileAttributeView.class);
+        if ((view == null) || !Files.exists(target)) return tmp;
+        try {
+            PosixFileAttributes attrs = Files.readAttributes(target, PosixFileAttributes.class);
+            view.setPermissions(attrs.permissions());
             
-        } finally {
+            // Only a privileged user can give the file away
             try {
-                fReader.close();
+                view.setGroup(attrs.group());
+                view.setOwner(attrs.owner());
             } catch (IOException ex) {
-                Logger.getLogger(RivetHistograms.class.getName()).log(Level.SEVERE, null, ex);
+                Logger.getLogger(RivetHistograms.class.getName()).log(Level.FINE, "Unable to keep the owner of " + target, ex);
             }
+        } catch (IOException ex) {
+            Files.deleteIfExists(tmp);
+            throw ex;
         }
-
+        return tmp;
     }
     
-    public void save() throws IOException {
-        // Write heading comment
-        try (PrintWriter fWriter = new PrintWriter(configFile)) {
-            // Write heading comment
-            if (!headingComment.isEmpty()) {
-                fWriter.println(headingComment);
+    /**
+     * Get the end of the region of a group in the file on disk
+     * @param i The index of the group
+     * @return The offset where the next group (or the file) begins
+     */
+    private long regionEnd(int i) {
+        return (i+1 < savedGroups.size()) ? savedGroups.get(i+1).offset : savedSize;
+    }
+    
+    /**
+     * Write the entire buffer at the given position of a channel
+     */
+    private static void writeFully(FileChannel ch, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            position += ch.write(buf, position);
+        }
+        ch.position(position);
+    }
+    
+    /**
+     * Fill the buffer from the given position of a channel
+     */
+    private static void readFully(FileChannel ch, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            int n = ch.read(buf, position);
+            if (n < 0) throw new IOException("Unexpected end of file");
+            position += n;
+        }
+    }
+    
+    /**
+     * Copy a range of a channel to the current position of another, and
+     * update the checksum of the copied bytes
+     */
+    private static void copyFully(FileChannel in, long position, long count, FileChannel out, CRC32 crc) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate((int) Math.min(count, WRITE_BUFFER_SIZE));
+        while (count > 0) {
+            buf.clear();
+            if (buf.remaining() > count) buf.limit((int) count);
+            int n = in.read(buf, position);
+            if (n <= 0) throw new IOException("Unexpected end of file");
+            crc.update(buf.array(), 0, n);
+            buf.flip();
+            writeFully(out, buf, out.position());
+            position += n;
+            count -= n;
+        }
+    }
+    
+    /**
+     * Atomically replace the target with the source file, where supported
+     */
+    private static void replace(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+    
+    /**
+     * Append the contents of a group to the given buffer
+     * @param sb The buffer
+     * @param g The group
+     * @param eol The line separator
+     * @return The buffer
+     */
+    private static StringBuilder appendGroup(StringBuilder sb, DataGroup g, String eol) {
+        sb.append(g.comment);
+        for (Data d: g.values) {
+            d.appendTo(sb).append(eol);
+        }
+        return sb.append(eol);
+    }
+    
+    /**
+     * Get the number of bytes of a string in the given charset
+     */
+    private static long byteLength(CharSequence s, Charset cs) {
+        for (int i=0; i<s.length(); i++) {
+            if (s.charAt(i) >= 128) {
+                return cs.encode(CharBuffer.wrap(s)).remaining();
             }
+        }
+        return s.length();
+    }
+    
+    /**
+     * Write the configuration to the given writer, and update the offsets
+     * of the groups.
+     * 
+     * @param fWriter The writer
+     * @return The number of bytes written
+     * @throws IOException 
+     */
+    private long write(Writer fWriter) throws IOException {
+        Charset cs = Charset.defaultCharset();
+        String eol = System.lineSeparator();
+        StringBuilder sb = new StringBuilder(4096);
+        long offset = 0;
+        
+        // Write heading comment
+        if (!headingComment.isEmpty()) {
+            sb.append(headingComment).append(eol);
+            fWriter.append(sb);
+            offset += byteLength(sb, cs);
+        }
 
-            // Process data groups
-            for (DataGroup g: dataGroups) {
-                fWriter.print(g.comment);
-                for (Data d: g.values) {
-                    fWriter.println(d.toString());
-                }
-                fWriter.println();
-            }
+        // Process data groups
+        for (DataGroup g: dataGroups) {
+            sb.setLength(0);
+            appendGroup(sb, g, eol);
+            fWriter.append(sb);
+            g.offset = offset;
+            offset += byteLength(sb, cs);
         }
+        
+        return offset;
+    }
+    
+    /**
+     * Build a compact, columnar copy of the data entries
+     * @return The columnar store
+     */
+    public HistogramColumns toColumns() {
+        return new HistogramColumns(dataGroups);
+    }
+    
+    /**
+     * @return The configuration file
+     */
+    public File getConfigFile() {
+        return configFile;
     }
     
     public RivetHistograms(String filename) {
@@ -7,9 +7,24 @@
 package ch.cern.mcplots.data;
 
 import ch.cern.mcplots.ui.ProgressEvents;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.yaml.snakeyaml.Yaml;
 import org.yaml.snakeyaml.scanner.ScannerException;
  
@@ -23,170 +38,151 @@ public class RivetInfo {
         public void rivetTagsReceived( HashMap<String, String> tags );
     }
     public static interface AsyncAnalysisMatrixHandler {
-        public void rivetMatrixReceived( HashMap<String, Object> analysisData );
+        public void rivetMatrixReceived( HashMap<String, AnalysisInfo> analysisData );
     }
-
+    
     /**
-     * A thread monitor that waits all threads to complete
+     * Matrix handlers that also implement this interface receive every
+     * analysis as soon as it's available, from the worker threads.
      */
-    private static class ThreadMonitor {
+    public static interface AsyncAnalysisStreamHandler {
+        public void rivetAnalysisReceived( String rev, String name, AnalysisInfo info );
+    }
 
-        AsyncAnalysisMatrixHandler handler;
-        ProgressEvents progressHandler;
-        HashMap<String, Object> output;
+    /**
+     * The ways the info of the analyses can be fetched
+     */
+    public static enum FetchMode {
         
         /**
-         * The counter of running threads
-         */
-        private int numThreads;
-
-        /**
-         * Initialize the thread monitor
-         * @param handler
-         * @param output 
+         * Use a work-stealing pool with the requested number of threads
          */
-        private ThreadMonitor(ProgressEvents progressHandler, AsyncAnalysisMatrixHandler handler, HashMap<String, Object> output) {
-            this.handler = handler;
-            this.progressHandler = progressHandler;
-            this.output = output;
-            this.numThreads = 0;
-        }
+        POOLED,
         
         /**
-         * Handle start of thread
+         * Start one thread for every analysis, and limit the number of
+         * in-flight requests with a semaphore
          */
-        synchronized void threadStarted() {
-            // Increment running threads counter
-            numThreads++;
-        }
+        THREAD_PER_ANALYSIS,
         
         /**
-         * Handle completion of thread execution
+         * Adapt the number of in-flight requests to the server (up to the
+         * requested number of threads), and retry the failed ones
          */
-        synchronized void threadCompleted() {
-            // Wait until all threads are completed
-            if (--numThreads == 0) {
-                
-                // Fire completion handler
-                if (progressHandler != null)
-                    progressHandler.progressCompleted();
-                
-                // Fire handler upon completion
-                handler.rivetMatrixReceived(output);
-                
-            }
-        }
+        ADAPTIVE
         
     }
     
     /**
-     * Internal class used for downloading analyses info
+     * Stack size of the threads in THREAD_PER_ANALYSIS mode
      */
-    private class DownloadThread implements Runnable {
+    private static final long THREAD_STACK_SIZE = 256 * 1024;
+    
+    /**
+     * Placeholder for the analyses without info, since the concurrent
+     * result map does not accept null values. It's the same one the info
+     * cache uses for the analyses known to have no info.
+     */
+    private static final AnalysisInfo MISSING = AnalysisInfoCache.MISSING;
+    
+    /**
+     * Future for the analyses matrix that optionally fires a handler
+     * upon completion.
+     */
+    private static class MatrixTask extends FutureTask<Map<String, AnalysisInfo>> {
         
-        ThreadMonitor monitor;
-        LinkedList<String> input;
-        int inputSize;
-        HashMap<String, Object> output;
-        ProgressEvents progressHandler;
-        String rev;
+        AsyncAnalysisMatrixHandler handler;
 
         /**
-         * Initialize a downloader thread.
-         * 
-         * @param parent The parent RivetInfo class
-         * @param input The list to read the analysis names from
-         * @param output The list to write the analysis data to
-         * @param rev The TRAC revision we are in
+         * Initialize the matrix task
+         * @param callable The callable that builds the matrix
+         * @param handler The handler to fire upon completion (or null)
          */
-        public DownloadThread(ThreadMonitor monitor, ProgressEvents progressHandler, LinkedList<String> input, int inputSize, HashMap<String, Object> output, String rev) {
-            this.progressHandler = progressHandler;
-            this.monitor = monitor;
-            this.input = input;
-            this.inputSize = inputSize;
-            this.output = output;
-            this.rev = rev;
+        MatrixTask(Callable<Map<String, AnalysisInfo>> callable, AsyncAnalysisMatrixHandler handler) {
+            super(callable);
+            this.handler = handler;
         }
 
         @Override
-        public void run() {
-            
-            // Notify thread monitor that we started
-            monitor.threadStarted();
-            
-            // Yaml parser
-            Yaml yaml = new Yaml();
-
-            // If no analyses left, quit
-            while (!input.isEmpty()) {
-
-                // Get analyses name
-                String name = null;
-                synchronized (this) {
-                    
-                    // Fetch name from input
-                    name = input.removeFirst();
-
-                    // Let people know that we are downloading
-                    if (progressHandler != null)
-                        progressHandler.progress("Analyzing "+name+"...", inputSize+1-input.size(), inputSize+1);        
-                    
-                }
-                
-                // Check for error
-                if (name == null)
-                    break;
-
-                // Download buffer
-                String buffer = rivetTrac.downloadFile("data/anainfo/"+name+".info", rev);
-                if (!buffer.isEmpty()) {
-
-                    // Parse with YAML
-                    Object o = null;
-                    try {
-                        o = yaml.load(buffer);
-                    }
-                    catch (ScannerException ex) {
-                        java.util.logging.Logger.getLogger(DownloadThread.class.getName()).log(java.util.logging.Level.SEVERE, null, ex);                        
-                    }
-                    catch (Exception ex) {
-                        java.util.logging.Logger.getLogger(DownloadThread.class.getName()).log(java.util.logging.Level.SEVERE, null, ex);                        
-                    }
-
-                    // Store error (null) or value
-                    synchronized (this) {
-                        output.put(name, o);
-                    }
-
-                } else {
-
-                    // Store error
-                    synchronized (this) {
-                        output.put(name, null);
-                    }
-
-                }
-
+        protected void done() {
+            if ((handler == null) || isCancelled()) return;
+            try {
+                handler.rivetMatrixReceived((HashMap<String, AnalysisInfo>) get());
+            } catch (InterruptedException | ExecutionException ex) {
+                java.util.logging.Logger.getLogger(RivetInfo.class.getName()).log(java.util.logging.Level.SEVERE, null, ex);
             }
-            
-            // Notify thread monitor that we are completed
-            monitor.threadCompleted();
-            
         }
         
     }
     
     /**
-     * The TRAC crawler class which is used for looking-up up-to-date
-     * Rivet information.
+     * Yaml parser for every worker thread, since it's not thread-safe
+     */
+    private static final ThreadLocal<Yaml> yaml = new ThreadLocal<Yaml>() {
+        @Override
+        protected Yaml initialValue() {
+            return new Yaml();
+        }
+    };
+    
+    /**
+     * Where the Rivet information is looked-up from
      */
-    private final TracCrawler rivetTrac;
+    private final AnalysisSource source;
+    
+    /**
+     * The parsed analysis infos of the revisions already fetched
+     * (or null if the source can not be cached)
+     */
+    private final AnalysisInfoCache infoCache;
+    
+    /**
+     * The way the info of the analyses is fetched
+     */
+    private FetchMode fetchMode = FetchMode.ADAPTIVE;
+    
+    /**
+     * The statistics of the last analyses matrix download
+     */
+    private volatile FetchStats lastFetchStats;
 
     /**
-     * Initialize the RivetInfo class
+     * Initialize the RivetInfo class with the Rivet TRAC as source
      */
     public RivetInfo() {
-        rivetTrac = new TracCrawler("https://rivet.hepforge.org/trac/browser");
+        this(new TracAnalysisSource("https://rivet.hepforge.org/trac/browser"));
+    }
+    
+    /**
+     * Initialize the RivetInfo class
+     * @param source Where to look-up the analyses from
+     */
+    public RivetInfo(AnalysisSource source) {
+        this.source = source;
+        String id = source.getCacheId();
+        infoCache = (id == null) ? null : new AnalysisInfoCache(TracCache.getDefaultDirectory(), id);
+    }
+    
+    /**
+     * Change the way the info of the analyses is fetched.
+     * 
+     * In THREAD_PER_ANALYSIS and ADAPTIVE modes the number of threads passed
+     * to asyncGetAnalysesMatrix is the maximum number of in-flight requests.
+     * 
+     * @param fetchMode The fetch mode
+     */
+    public void setFetchMode(FetchMode fetchMode) {
+        this.fetchMode = fetchMode;
+    }
+    
+    /**
+     * Return the throughput and latency statistics of the last
+     * analyses matrix download.
+     * 
+     * @return The statistics or null if nothing was downloaded yet
+     */
+    public FetchStats getLastFetchStats() {
+        return lastFetchStats;
     }
     
     /**
@@ -206,7 +202,7 @@ public class RivetInfo {
             public void run() {
                 
                 // Get rivet tags
-                HashMap<String, String> tags = rivetTrac.getTags();
+                HashMap<String, String> tags = source.getTags();
                 
                 // First fire progress completion handlers
                 if (progressHandler != null) {
@@ -222,70 +218,531 @@ public class RivetInfo {
         t.start();
     }
     
+    /**
+     * Download and parse the info of the given analysis
+     * 
+     * @param name The name of the analysis
+     * @param rev The revision
+     * @return The analysis info or null in case of error
+     */
+    private AnalysisInfo fetchAnalysisInfo(String name, String rev) {
+        try {
+            return fetchAnalysisInfo(name, rev, null);
+        } catch (IOException ex) {
+            java.util.logging.Logger.getLogger(RivetInfo.class.getName()).log(java.util.logging.Level.SEVERE, null, ex);
+            return null;
+        }
+    }
+    
+    /**
+     * Download and parse the info of the given analysis, re-using the
+     * cached info of another revision if the file did not change since.
+     * 
+     * @param name The name of the analysis
+     * @param rev The revision
+     * @param sameAsRev A revision with the same info file (or null)
+     * @return The analysis info or null if missing or invalid
+     * @throws IOException If the info could not be downloaded, but may be if retried
+     */
+    private AnalysisInfo fetchAnalysisInfo(String name, String rev, String sameAsRev) throws IOException {
+        
+        // Download buffer
+        String buffer = source.readAnalysisInfo(name, rev, sameAsRev);
+        if (buffer.isEmpty()) return null;
+        
+        // Parse with YAML
+        return parseAnalysisInfo(name, buffer);
+        
+    }
+    
+    /**
+     * Parse the contents of an analysis info file
+     * 
+     * @param name The name of the analysis
+     * @param buffer The contents of the .info file
+     * @return The analysis info or null in case of error
+     */
+    private static AnalysisInfo parseAnalysisInfo(String name, String buffer) {
+        try {
+            return AnalysisInfo.fromYaml(name, yaml.get().load(buffer));
+        }
+        catch (ScannerException ex) {
+            java.util.logging.Logger.getLogger(RivetInfo.class.getName()).log(java.util.logging.Level.SEVERE, null, ex);
+        }
+        catch (Exception ex) {
+            java.util.logging.Logger.getLogger(RivetInfo.class.getName()).log(java.util.logging.Level.SEVERE, null, ex);
+        }
+        return null;
+        
+    }
+    
+    /**
+     * Find the analysis info files that did not change between two
+     * revisions, by comparing the revision each file was last changed in.
+     * 
+     * @param fromRev The previous (tagged) revision
+     * @param rev The new revision
+     * @return The names of the unchanged analyses, or an empty set if unknown
+     */
+    private HashSet<String> unchangedAnalyses(String fromRev, String rev) {
+        HashSet<String> ans = new HashSet<>();
+        Map<String, String> before = source.getInfoRevisions(fromRev);
+        Map<String, String> after = (before == null) ? null : source.getInfoRevisions(rev);
+        if ((before == null) || (after == null)) return ans;
+        
+        for (Map.Entry<String, String> e: after.entrySet()) {
+            if (!e.getValue().isEmpty() && e.getValue().equals(before.get(e.getKey()))) {
+                ans.add(e.getKey());
+            }
+        }
+        return ans;
+    }
+    
+    /**
+     * Download the info of all analyses for the given revision, with at
+     * most the given number of concurrent downloads (see FetchMode).
+     * 
+     * If a previous revision is given, the info files that did not change
+     * since are taken from the cache of that revision instead of being
+     * downloaded again.
+     * 
+     * @param fromRev The previous (tagged) revision, or null
+     * @param rev The revision
+     * @param threads The number of concurrent downloads
+     * @param streamHandler The receiver of every individual analysis (or null)
+     * @param progressHandler The progress event handler receiver.
+     * @return The analysis data, indexed by analysis name (null values for errors)
+     */
+    private HashMap<String, AnalysisInfo> buildAnalysesMatrix(final String fromRev, final String rev, int threads, final AsyncAnalysisStreamHandler streamHandler, final ProgressEvents progressHandler) throws InterruptedException {
+        
+        // Re-opening a tag needs no listing and no parsing
+        final Map<String, AnalysisInfo> cached = (infoCache == null) ? null : infoCache.get(rev);
+        ArrayList<String> input;
+        boolean listed = true;
+        if (cached != null) {
+            input = new ArrayList<>(cached.keySet());
+        } else {
+            
+            // Fetch array list
+            input = source.listAnalyses(rev);
+            if (input == null) {
+                java.util.logging.Logger.getLogger(RivetInfo.class.getName()).log(java.util.logging.Level.SEVERE, "Unable to list analyses for revision ''{0}''", rev);
+                input = new ArrayList<>();
+                listed = false;
+            }
+            
+        }
+        
+        // Find what did not change since the previous revision
+        final boolean delta = (cached == null) && (fromRev != null) && !fromRev.isEmpty() && !fromRev.equals(rev);
+        final HashSet<String> unchanged = delta ? unchangedAnalyses(fromRev, rev) : new HashSet<String>();
+        final Map<String, AnalysisInfo> previous = (delta && (infoCache != null)) ? infoCache.get(fromRev) : null;
+        final AtomicInteger parsed = new AtomicInteger(0);
+        
+        // Get number of elements to scan
+        final int inputSize = input.size();
+        final AtomicInteger completed = new AtomicInteger(0);
+        final AtomicInteger failures = new AtomicInteger(0);
+        final ConcurrentHashMap<String, AnalysisInfo> output = new ConcurrentHashMap<>(inputSize * 2);
+        final FetchStats stats = new FetchStats(inputSize);
+        
+        // Notify that we now know the number of analyses
+        if (progressHandler != null)
+            progressHandler.progress("Starting download...", 1, inputSize+1);
+        
+        // One look-up for each analysis
+        final ArrayList<Callable<AnalysisInfo>> lookups = new ArrayList<>(inputSize);
+        for (final String name: input) {
+            lookups.add(new Callable<AnalysisInfo>() {
+                @Override
+                public AnalysisInfo call() throws IOException {
+                    AnalysisInfo o = (cached == null) ? null : cached.get(name);
+                    if ((o == null) && (previous != null) && unchanged.contains(name)) {
+                        o = previous.get(name);
+                    }
+                    if (o == null) {
+                        o = fetchAnalysisInfo(name, rev, unchanged.contains(name) ? fromRev : null);
+                        parsed.incrementAndGet();
+                    }
+                    return (o == MISSING) ? null : o;
+                }
+            });
+        }
+        
+        // Collect the outcome of every look-up
+        final ArrayList<String> names = input;
+        DownloadScheduler.Listener<AnalysisInfo> collector = new DownloadScheduler.Listener<AnalysisInfo>() {
+            @Override
+            public void completed(int index, AnalysisInfo o, long nanos) {
+                String name = names.get(index);
+                stats.record(nanos, o == null);
+                output.put(name, (o == null) ? MISSING : o);
+                if (streamHandler != null)
+                    streamHandler.rivetAnalysisReceived(rev, name, o);
+                
+                // Let people know about our progress
+                if (progressHandler != null)
+                    progressHandler.progress("Analyzing "+name+"...", completed.incrementAndGet()+1, inputSize+1);
+            }
+            
+            @Override
+            public void failed(int index, Exception ex, long nanos) {
+                java.util.logging.Logger.getLogger(RivetInfo.class.getName()).log(java.util.logging.Level.SEVERE, "Unable to fetch " + names.get(index), ex);
+                failures.incrementAndGet();
+                completed(index, null, nanos);
+            }
+        };
+        
+        // Run them and wait for completion
+        if (fetchMode == FetchMode.ADAPTIVE) {
+            DownloadScheduler scheduler = new DownloadScheduler(hostOf(source), threads);
+            scheduler.runAll(lookups, collector);
+            java.util.logging.Logger.getLogger(RivetInfo.class.getName()).log(java.util.logging.Level.INFO, "Settled to {0} requests in flight, after {1} retries", new Object[]{ scheduler.getLimit(), scheduler.getRetries() });
+        } else {
+            
+            // Each task makes a single attempt
+            ArrayList<Callable<Void>> tasks = new ArrayList<>(inputSize);
+            for (int i=0; i<inputSize; i++) {
+                final int index = i;
+                final DownloadScheduler.Listener<AnalysisInfo> listener = collector;
+                tasks.add(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        long t0 = System.nanoTime();
+                        try {
+                            AnalysisInfo o = lookups.get(index).call();
+                            listener.completed(index, o, System.nanoTime() - t0);
+                        } catch (Exception ex) {
+                            listener.failed(index, ex, System.nanoTime() - t0);
+                        }
+                        return null;
+                    }
+                });
+            }
+            
+            if (fetchMode == FetchMode.THREAD_PER_ANALYSIS) {
+                runThreadPerTask(tasks, threads);
+            } else {
+                ForkJoinPool pool = new ForkJoinPool(Math.max(1, threads));
+                try {
+                    pool.invokeAll(tasks);
+                } finally {
+                    pool.shutdown();
+                }
+            }
+            
+        }
+        
+        // Report throughput
+        stats.finish();
+        lastFetchStats = stats;
+        java.util.logging.Logger.getLogger(RivetInfo.class.getName()).log(java.util.logging.Level.INFO, "Fetched analyses for revision ''{0}'' ({1}, {2} unchanged, {3} downloaded): {4}", new Object[]{ rev, fetchMode, unchanged.size(), parsed.get(), stats });
+        
+        // Convert to the public representation
+        HashMap<String, AnalysisInfo> ans = new HashMap<>(inputSize * 2);
+        for (Map.Entry<String, AnalysisInfo> e: output.entrySet()) {
+            ans.put(e.getKey(), (e.getValue() == MISSING) ? null : e.getValue());
+        }
+        
+        // Keep the infos for the next time this tag is opened, unless some
+        // of them could not be fetched (a cached tag has nothing new)
+        if ((infoCache != null) && (cached == null) && listed && (failures.get() == 0)) {
+            infoCache.put(rev, ans);
+        }
+        return ans;
+        
+    }
+    
+    /**
+     * Get the host name of a source, for its circuit breaker
+     */
+    private static String hostOf(AnalysisSource source) {
+        String id = source.getCacheId();
+        if (id == null) return "localhost";
+        try {
+            String host = new URI(id).getHost();
+            return (host == null) ? id : host;
+        } catch (URISyntaxException ex) {
+            return id;
+        }
+    }
+    
+    /**
+     * Run every task on its own thread, allowing at most maxInFlight
+     * of them to run at the same time.
+     * 
+     * @param tasks The tasks to run
+     * @param maxInFlight The maximum number of concurrently running tasks
+     */
+    private static void runThreadPerTask(ArrayList<Callable<Void>> tasks, int maxInFlight) throws InterruptedException {
+        final Semaphore inFlight = new Semaphore(Math.max(1, maxInFlight));
+        ArrayList<Thread> workers = new ArrayList<>(tasks.size());
+        for (final Callable<Void> task: tasks) {
+            Runnable r = new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        inFlight.acquire();
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                    try {
+                        task.call();
+                    } catch (Exception ex) {
+                        java.util.logging.Logger.getLogger(RivetInfo.class.getName()).log(java.util.logging.Level.SEVERE, null, ex);
+                    } finally {
+                        inFlight.release();
+                    }
+                }
+            };
+            
+            // The threads only wait on the network, so keep their stacks small
+            Thread t = new Thread(null, r, "RivetInfo-" + workers.size(), THREAD_STACK_SIZE);
+            t.setDaemon(true);
+            workers.add(t);
+            t.start();
+        }
+        for (Thread t: workers) {
+            t.join();
+        }
+    }
+    
+    /**
+     * Return the configuration of all analyses for the given revision.
+     * This takes a lot of time, so the work is done in a separate thread.
+     * 
+     * @param rev The revision
+     * @param threads The number of concurrent downloads
+     * @param progressHandler  The progress event handler receiver.
+     * @return A future for the analysis data, indexed by analysis name
+     */
+    public Future<Map<String, AnalysisInfo>> getAnalysesMatrix( final String rev, final int threads, final ProgressEvents progressHandler ) {
+        return startAnalysesMatrix(rev, threads, null, progressHandler);
+    }
+    
     /**
      * Return the configuration of all analyses for the given revision.
      * This takes a lot of time.
      * 
      * @param rev The revision
-     * @param threads The number of concurrent threads
+     * @param threads The number of concurrent downloads
      * @param handler The handler for the asynchronous matrix receiver.
      * @param progressHandler  The progress event handler receiver.
      */
     public void asyncGetAnalysesMatrix( final String rev, final int threads, final AsyncAnalysisMatrixHandler handler, final ProgressEvents progressHandler ) {
+        startAnalysesMatrix(rev, threads, handler, progressHandler);
+    }
+    
+    /**
+     * Return the configuration of all analyses for the given revision,
+     * when switching from another revision.
+     * 
+     * Only the info files that changed between the two revisions (according
+     * to the TRAC listings of data/anainfo) are downloaded; the rest are
+     * taken from the cache of the previous revision.
+     * 
+     * @param fromRev The previous (tagged) revision
+     * @param rev The new revision
+     * @param threads The number of concurrent downloads
+     * @param handler The handler for the asynchronous matrix receiver (or null)
+     * @param progressHandler  The progress event handler receiver.
+     * @return A future for the analysis data, indexed by analysis name
+     */
+    public Future<Map<String, AnalysisInfo>> asyncGetAnalysesMatrixDelta( final String fromRev, final String rev, final int threads, final AsyncAnalysisMatrixHandler handler, final ProgressEvents progressHandler ) {
+        return startAnalysesMatrix(new Callable<Map<String, AnalysisInfo>>() {
+            @Override
+            public Map<String, AnalysisInfo> call() throws Exception {
+                return buildAnalysesMatrix(fromRev, rev, threads, streamOf(handler), progressHandler);
+            }
+        }, handler, progressHandler);
+    }
+    
+    /**
+     * Return the configuration of all analyses for the given revision,
+     * using a single archive of the sources (ex. a zip of the repository
+     * from TRAC) instead of a request for every analysis.
+     * 
+     * @param rev The (tagged) revision
+     * @param handler The handler for the asynchronous matrix receiver (or null)
+     * @param progressHandler  The progress event handler receiver.
+     * @return A future for the analysis data, indexed by analysis name
+     */
+    public Future<Map<String, AnalysisInfo>> asyncGetAnalysesMatrixFromArchive( final String rev, final AsyncAnalysisMatrixHandler handler, final ProgressEvents progressHandler ) {
+        return startAnalysesMatrix(new Callable<Map<String, AnalysisInfo>>() {
+            @Override
+            public Map<String, AnalysisInfo> call() throws Exception {
+                Map<String, AnalysisInfo> cached = (infoCache == null) ? null : infoCache.get(rev);
+                if (cached != null) {
+                    return replayAnalysesMatrix(rev, cached, streamOf(handler), progressHandler);
+                }
+                try (InputStream in = source.openArchive(rev)) {
+                    if (in == null) {
+                        throw new IOException("The analysis source has no archives");
+                    }
+                    HashMap<String, AnalysisInfo> ans = buildAnalysesMatrix(in, rev, streamOf(handler), progressHandler);
+                    if ((infoCache != null) && !ans.isEmpty()) {
+                        infoCache.put(rev, ans);
+                    }
+                    return ans;
+                }
+            }
+        }, handler, progressHandler);
+    }
+    
+    /**
+     * Return the configuration of all analyses in a local Rivet source
+     * archive (zip, tar or tar.gz), without any network access.
+     * 
+     * @param archive The archive file
+     * @param handler The handler for the asynchronous matrix receiver (or null)
+     * @param progressHandler  The progress event handler receiver.
+     * @return A future for the analysis data, indexed by analysis name
+     */
+    public Future<Map<String, AnalysisInfo>> asyncGetAnalysesMatrixFromArchive( final File archive, final AsyncAnalysisMatrixHandler handler, final ProgressEvents progressHandler ) {
+        return startAnalysesMatrix(new Callable<Map<String, AnalysisInfo>>() {
+            @Override
+            public Map<String, AnalysisInfo> call() throws Exception {
+                try (InputStream in = new FileInputStream(archive)) {
+                    return buildAnalysesMatrix(in, archive.getPath(), streamOf(handler), progressHandler);
+                }
+            }
+        }, handler, progressHandler);
+    }
+    
+    /**
+     * Extract the analysis names and their info from a Rivet source
+     * archive, in a single pass.
+     * 
+     * @param archive The archive stream
+     * @param rev The revision (or file name) of the archive, passed to the stream handler
+     * @param streamHandler The receiver of every individual analysis (or null)
+     * @param progressHandler The progress event handler receiver.
+     * @return The analysis data, indexed by analysis name (null values for errors)
+     */
+    private HashMap<String, AnalysisInfo> buildAnalysesMatrix(InputStream archive, String rev, AsyncAnalysisStreamHandler streamHandler, final ProgressEvents progressHandler) throws IOException {
+        final ArrayList<String> analyses = new ArrayList<>();
+        final HashMap<String, String> infos = new HashMap<>();
+        
+        // Collect src/Analyses/*.cc and data/anainfo/*.info
+        ArchiveReader.read(archive, new ArchiveReader.Visitor() {
+            @Override
+            public void entry(String name, InputStream contents) throws IOException {
+                String ana = archiveFile(name, "src/Analyses/", ".cc");
+                if (ana != null) {
+                    analyses.add(ana);
+                    return;
+                }
+                ana = archiveFile(name, "data/anainfo/", ".info");
+                if (ana != null) {
+                    infos.put(ana, ArchiveReader.readString(contents));
+                    if (progressHandler != null)
+                        progressHandler.progress("Reading "+ana+"...", 0, 1);
+                }
+            }
+        });
+        
+        // Parse the info of every analysis
+        HashMap<String, AnalysisInfo> ans = new HashMap<>(analyses.size() * 2);
+        int i = 0;
+        for (String name: analyses) {
+            if (progressHandler != null)
+                progressHandler.progress("Analyzing "+name+"...", ++i, analyses.size());
+            String buffer = infos.get(name);
+            AnalysisInfo o = (buffer == null) ? null : parseAnalysisInfo(name, buffer);
+            ans.put(name, o);
+            if (streamHandler != null)
+                streamHandler.rivetAnalysisReceived(rev, name, o);
+        }
+        return ans;
+        
+    }
+    
+    /**
+     * Return the analyses of a revision from the info cache, passing
+     * them to the stream handler like a download would.
+     * 
+     * @param rev The revision
+     * @param cached The cached infos of the revision
+     * @param streamHandler The receiver of every individual analysis (or null)
+     * @param progressHandler The progress event handler receiver.
+     * @return The analysis data, indexed by analysis name (null values for errors)
+     */
+    private HashMap<String, AnalysisInfo> replayAnalysesMatrix(String rev, Map<String, AnalysisInfo> cached, AsyncAnalysisStreamHandler streamHandler, ProgressEvents progressHandler) {
+        if (progressHandler != null)
+            progressHandler.progress("Reading cached analyses...", 0, 1);
+        HashMap<String, AnalysisInfo> ans = new HashMap<>(cached.size() * 2);
+        for (Map.Entry<String, AnalysisInfo> e: cached.entrySet()) {
+            AnalysisInfo o = (e.getValue() == MISSING) ? null : e.getValue();
+            ans.put(e.getKey(), o);
+            if (streamHandler != null)
+                streamHandler.rivetAnalysisReceived(rev, e.getKey(), o);
+        }
+        return ans;
+    }
+    
+    /**
+     * Check if an archive entry is a file in the given directory of
+     * the source tree, regardless of the top-level folder of the archive.
+     * 
+     * @param entry The path of the archive entry
+     * @param dir The directory relative to the source root (with trailing slash)
+     * @param ext The file extension
+     * @return The file name without extension, or null if it does not match
+     */
+    private static String archiveFile(String entry, String dir, String ext) {
+        int i = entry.lastIndexOf(dir);
+        if ((i < 0) || ((i > 0) && (entry.charAt(i-1) != '/')) || !entry.endsWith(ext)) {
+            return null;
+        }
+        String name = entry.substring(i + dir.length(), entry.length() - ext.length());
+        return (name.isEmpty() || (name.indexOf('/') >= 0)) ? null : name;
+    }
+    
+    /**
+     * Start building the analyses matrix from the source in a separate thread
+     */
+    private Future<Map<String, AnalysisInfo>> startAnalysesMatrix( final String rev, final int threads, final AsyncAnalysisMatrixHandler handler, final ProgressEvents progressHandler ) {
+        return startAnalysesMatrix(new Callable<Map<String, AnalysisInfo>>() {
+            @Override
+            public Map<String, AnalysisInfo> call() throws Exception {
+                return buildAnalysesMatrix(null, rev, threads, streamOf(handler), progressHandler);
+            }
+        }, handler, progressHandler);
+    }
+    
+    /**
+     * Return the matrix handler as stream handler, if it implements the interface
+     */
+    private static AsyncAnalysisStreamHandler streamOf(AsyncAnalysisMatrixHandler handler) {
+        return (handler instanceof AsyncAnalysisStreamHandler) ? (AsyncAnalysisStreamHandler) handler : null;
+    }
+    
+    /**
+     * Start building the analyses matrix in a separate thread
+     */
+    private Future<Map<String, AnalysisInfo>> startAnalysesMatrix( final Callable<Map<String, AnalysisInfo>> builder, final AsyncAnalysisMatrixHandler handler, final ProgressEvents progressHandler ) {
         if (progressHandler != null) {
             progressHandler.progressStarted();
             progressHandler.progress("Discovering available analyses...", 0, 1);
         }
         
         // Run all the time-consuming operations in another thread
-        Thread tt = new Thread(new Runnable() {
-
+        MatrixTask task = new MatrixTask(new Callable<Map<String, AnalysisInfo>>() {
             @Override
-            public void run() {
-
-                // Fetch array list
-                ArrayList<String> analyses = rivetTrac.getFiles("src/Analyses", rev);
-                if (analyses == null) {
-                    return;
-                }
-
-                // Create a thread-safe input and output
-                LinkedList<String> input = new LinkedList<>();
-                HashMap<String, Object> output = new HashMap<>();
-
-                // Populate input
-                for (String ana: analyses) {
-                    if (ana.endsWith(".cc")) {
-                        input.add(ana.substring(0, ana.length()-3));
-                    }
-                }
-
-                // Prepare thread monitor which is going to fire
-                // the handler upon completion
-                ThreadMonitor tm = new ThreadMonitor(progressHandler, handler, output);
-
-                // Get number of elements to scan
-                int inputSize = input.size();
-
-                // Notify that we now know the number of analyses
-                if (progressHandler != null)
-                    progressHandler.progress("Starting download...", 1, inputSize+1);        
-
-                // Create workers
-                for (int i=0; i< threads; i++) {
-                    Thread t = new Thread( new DownloadThread(tm, progressHandler, input, inputSize, output, rev) );
-                    t.start();
+            public Map<String, AnalysisInfo> call() throws Exception {
+                try {
+                    return builder.call();
+                } finally {
+                    // Fire completion handler before the callback handler
+                    if (progressHandler != null)
+                        progressHandler.progressCompleted();
                 }
-
-                // The callbacks will be fired by the DownloadThread and
-                // the ThreadMonitor classes when needed.
-
             }
-            
-        });
+        }, handler);
         
         // Start thread
-        tt.start();
+        new Thread(task).start();
+        return task;
         
     }
     
@@ -0,0 +1,123 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package ch.cern.mcplots.data;
+
+/**
+ * Pool of unique strings, looked-up directly by a range of characters.
+ *
+ * The configuration files repeat a small vocabulary of values on every line,
+ * so the parsers resolve each token through this pool instead of allocating
+ * a new String for it.
+ *
+ * @author icharala
+ */
+final class TokenPool {
+
+    /**
+     * Open-addressing table of the pooled strings
+     */
+    private String[] table;
+
+    /**
+     * The hash codes of the pooled strings
+     */
+    private int[] hashes;
+
+    /**
+     * The number of pooled strings
+     */
+    private int size;
+
+    /**
+     * Initialize an empty pool
+     */
+    TokenPool() {
+        table = new String[1024];
+        hashes = new int[1024];
+        size = 0;
+    }
+
+    /**
+     * Return the pooled string with the contents of the given range
+     *
+     * @param text The text to take the characters from
+     * @param start The start of the range (inclusive)
+     * @param end The end of the range (exclusive)
+     * @return The unique string instance
+     */
+    String get(CharSequence text, int start, int end) {
+
+        // Same hash function as String.hashCode()
+        int h = 0;
+        for (int i=start; i<end; i++) {
+            h = 31*h + text.charAt(i);
+        }
+
+        // Look-up
+        int mask = table.length - 1;
+        int slot = mix(h) & mask;
+        String s;
+        while ((s = table[slot]) != null) {
+            if ((hashes[slot] == h) && equals(s, text, start, end)) {
+                return s;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        // Insert
+        s = text.subSequence(start, end).toString();
+        table[slot] = s;
+        hashes[slot] = h;
+        if (++size * 2 > table.length) {
+            grow();
+        }
+        return s;
+
+    }
+
+    /**
+     * Compare a pooled string with a range of characters
+     */
+    private static boolean equals(String s, CharSequence text, int start, int end) {
+        if (s.length() != end - start) return false;
+        for (int i=start; i<end; i++) {
+            if (s.charAt(i-start) != text.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Spread the bits of the hash code, since the table size is a power of two
+     */
+    private static int mix(int h) {
+        h ^= (h >>> 16);
+        h *= 0x85ebca6b;
+        return h ^ (h >>> 13);
+    }
+
+    /**
+     * Double the size of the table
+     */
+    private void grow() {
+        String[] oldTable = table;
+        int[] oldHashes = hashes;
+        table = new String[oldTable.length * 2];
+        hashes = new int[oldTable.length * 2];
+        int mask = table.length - 1;
+        for (int i=0; i<oldTable.length; i++) {
+            if (oldTable[i] != null) {
+                int slot = mix(oldHashes[i]) & mask;
+                while (table[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                table[slot] = oldTable[i];
+                hashes[slot] = oldHashes[i];
+            }
+        }
+    }
+
+}
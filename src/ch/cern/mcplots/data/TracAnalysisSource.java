@@ -0,0 +1,100 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package ch.cern.mcplots.data;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Analysis source that crawls the TRAC web interface of a Rivet repository
+ *
+ * @author icharala
+ */
+public class TracAnalysisSource implements AnalysisSource {
+
+    /**
+     * The TRAC crawler
+     */
+    private final TracCrawler crawler;
+
+    /**
+     * Create a source for the given TRAC repository, with the default
+     * on-disk cache
+     *
+     * @param tracBrowserURL The browse url of the trac (ex. http://<mydomain>/trac/browser)
+     */
+    public TracAnalysisSource(String tracBrowserURL) {
+        crawler = new TracCrawler(tracBrowserURL);
+        crawler.setCache(new TracCache());
+    }
+
+    @Override
+    public HashMap<String, String> getTags() {
+        return crawler.getTags();
+    }
+
+    @Override
+    public ArrayList<String> listAnalyses(String rev) {
+        ArrayList<String> files = crawler.getFiles("src/Analyses", rev);
+        if (files == null) return null;
+
+        ArrayList<String> ans = new ArrayList<>();
+        for (String f: files) {
+            if (f.endsWith(".cc")) {
+                ans.add(f.substring(0, f.length()-3));
+            }
+        }
+        return ans;
+    }
+
+    @Override
+    public String readAnalysisInfo(String name, String rev, String sameAsRev) throws IOException {
+        String path = "data/anainfo/"+name+".info";
+
+        // Use the cached file of the other revision, and remember it for this one
+        if (sameAsRev != null) {
+            String buffer = crawler.getCachedFile(path, sameAsRev);
+            if (buffer != null) {
+                crawler.putCachedFile(path, rev, buffer);
+                return buffer;
+            }
+        }
+
+        // Download buffer
+        return crawler.fetchFile(path, rev);
+    }
+
+    @Override
+    public Map<String, String> getInfoRevisions(String rev) {
+        LinkedHashMap<String, String> files = crawler.getFileRevisions("data/anainfo", rev);
+        if (files == null) return null;
+
+        HashMap<String, String> ans = new HashMap<>();
+        for (Map.Entry<String, String> e: files.entrySet()) {
+            String name = e.getKey();
+            if (name.endsWith(".info")) {
+                ans.put(name.substring(0, name.length()-5), e.getValue());
+            }
+        }
+        return ans;
+    }
+
+    @Override
+    public InputStream openArchive(String rev) throws IOException {
+        return crawler.openArchive("", rev);
+    }
+
+    @Override
+    public String getCacheId() {
+        return crawler.tracBrowserURL;
+    }
+
+}
@@ -0,0 +1,300 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package ch.cern.mcplots.data;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Persistent on-disk cache for the files downloaded from TRAC.
+ *
+ * Entries are addressed by the SHA-1 of (browser URL, path, revision) and
+ * stored as individual files in the cache directory. The total size of the
+ * cache is capped and the least recently used entries are evicted first.
+ *
+ * @author icharala
+ */
+public class TracCache {
+
+    /**
+     * Magic number at the beginning of every entry file
+     */
+    private static final int ENTRY_MAGIC = 0x4d435443;
+
+    /**
+     * The extension of the entry files
+     */
+    private static final String ENTRY_EXT = ".entry";
+
+    /**
+     * The default size cap (64 Mb)
+     */
+    public static final long DEFAULT_MAX_SIZE = 64L * 1024 * 1024;
+
+    /**
+     * The encoding of the cached bodies
+     */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * A cached entry
+     */
+    public static class Entry {
+
+        /**
+         * The contents of the file
+         */
+        public final String body;
+
+        /**
+         * The Last-Modified timestamp reported by the server (or 0 if unknown)
+         */
+        public final long lastModified;
+
+        /**
+         * Create a cache entry
+         * @param body The contents of the file
+         * @param lastModified The Last-Modified timestamp reported by the server
+         */
+        public Entry(String body, long lastModified) {
+            this.body = body;
+            this.lastModified = lastModified;
+        }
+
+    }
+
+    /**
+     * The directory where the entries are stored
+     */
+    private final File cacheDir;
+
+    /**
+     * The maximum size of all the entries in the cache (in bytes)
+     */
+    private final long maxSize;
+
+    /**
+     * Access-ordered index of the entry files and their sizes
+     */
+    private final LinkedHashMap<String, Long> index;
+
+    /**
+     * The total size of the entries in the index
+     */
+    private long totalSize;
+
+    /**
+     * Return the default location of the cache, under the user's
+     * configuration directory.
+     *
+     * @return The cache directory
+     */
+    public static File getDefaultDirectory() {
+        return new File(new File(System.getProperty("user.home"), ".mcplots"), "cache");
+    }
+
+    /**
+     * Initialize a cache in the default directory with the default size cap
+     */
+    public TracCache() {
+        this(getDefaultDirectory(), DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * Initialize a cache on the given directory
+     *
+     * @param cacheDir The directory to store the entries in
+     * @param maxSize The maximum size of the cache (in bytes)
+     */
+    public TracCache(File cacheDir, long maxSize) {
+        this.cacheDir = cacheDir;
+        this.maxSize = maxSize;
+        this.index = new LinkedHashMap<>(256, 0.75f, true);
+        this.totalSize = 0;
+
+        // Make sure the directory exists
+        if (!cacheDir.isDirectory() && !cacheDir.mkdirs()) {
+            Logger.getLogger(TracCache.class.getName()).log(Level.WARNING, "Unable to create cache directory {0}", cacheDir);
+            return;
+        }
+
+        // Populate index with the existing entries, least recently used first
+        File[] files = cacheDir.listFiles();
+        if (files == null) return;
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long d = a.lastModified() - b.lastModified();
+                return (d < 0) ? -1 : ((d > 0) ? 1 : 0);
+            }
+        });
+        for (File f: files) {
+            String n = f.getName();
+            if (f.isFile() && n.endsWith(ENTRY_EXT)) {
+                String key = n.substring(0, n.length()-ENTRY_EXT.length());
+                index.put(key, f.length());
+                totalSize += f.length();
+            }
+        }
+
+        // Trim if the cap has been lowered since last time
+        evict();
+
+    }
+
+    /**
+     * Calculate the key of a file
+     *
+     * @param baseURL The TRAC browser URL
+     * @param path The path of the file
+     * @param rev The revision of the file
+     * @return The hex-encoded key
+     */
+    public static String key(String baseURL, String path, String rev) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            md.update(baseURL.getBytes(UTF8));
+            md.update((byte) 0);
+            md.update(path.getBytes(UTF8));
+            md.update((byte) 0);
+            md.update(rev.getBytes(UTF8));
+
+            // Hex-encode digest
+            byte[] digest = md.digest();
+            char[] hex = new char[digest.length * 2];
+            for (int i=0; i<digest.length; i++) {
+                hex[i*2] = Character.forDigit((digest[i] >> 4) & 0xF, 16);
+                hex[i*2+1] = Character.forDigit(digest[i] & 0xF, 16);
+            }
+            return new String(hex);
+
+        } catch (NoSuchAlgorithmException ex) {
+            // SHA-1 is a mandatory algorithm on every platform
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Get the file where the given entry is stored
+     */
+    private File entryFile(String key) {
+        return new File(cacheDir, key + ENTRY_EXT);
+    }
+
+    /**
+     * Look-up an entry in the cache
+     *
+     * @param key The key of the entry (see key())
+     * @return The entry or null if it's not in the cache
+     */
+    public synchronized Entry get(String key) {
+        // get() (unlike containsKey()) marks the entry as recently used
+        if (index.get(key) == null) return null;
+
+        // Read entry
+        File f = entryFile(key);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)))) {
+            if (in.readInt() != ENTRY_MAGIC) {
+                throw new IOException("Invalid cache entry " + f);
+            }
+            long lastModified = in.readLong();
+            byte[] body = new byte[in.readInt()];
+            in.readFully(body);
+
+            // Mark as recently used, so it survives restarts
+            f.setLastModified(System.currentTimeMillis());
+
+            return new Entry(new String(body, UTF8), lastModified);
+
+        } catch (IOException ex) {
+            Logger.getLogger(TracCache.class.getName()).log(Level.WARNING, null, ex);
+            remove(key);
+            return null;
+        }
+    }
+
+    /**
+     * Store an entry in the cache
+     *
+     * @param key The key of the entry (see key())
+     * @param body The contents of the file
+     * @param lastModified The Last-Modified timestamp reported by the server (or 0)
+     */
+    public synchronized void put(String key, String body, long lastModified) {
+        byte[] data = body.getBytes(UTF8);
+
+        // Write to a temporary file and move in place, so concurrent
+        // instances never see a partial entry
+        File f = entryFile(key);
+        File tmp = new File(cacheDir, key + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(ENTRY_MAGIC);
+            out.writeLong(lastModified);
+            out.writeInt(data.length);
+            out.write(data);
+        } catch (IOException ex) {
+            Logger.getLogger(TracCache.class.getName()).log(Level.WARNING, null, ex);
+            tmp.delete();
+            return;
+        }
+
+        // Replace previous entry
+        remove(key);
+        if (!tmp.renameTo(f)) {
+            tmp.delete();
+            return;
+        }
+        index.put(key, f.length());
+        totalSize += f.length();
+
+        // Keep the cache within limits
+        evict();
+    }
+
+    /**
+     * Remove an entry from the cache
+     *
+     * @param key The key of the entry
+     */
+    public synchronized void remove(String key) {
+        Long size = index.remove(key);
+        if (size != null) {
+            totalSize -= size;
+        }
+        entryFile(key).delete();
+    }
+
+    /**
+     * Evict least recently used entries until the cache fits in maxSize
+     */
+    private void evict() {
+        Iterator<Map.Entry<String, Long>> it = index.entrySet().iterator();
+        while ((totalSize > maxSize) && it.hasNext()) {
+            Map.Entry<String, Long> e = it.next();
+            totalSize -= e.getValue();
+            entryFile(e.getKey()).delete();
+            it.remove();
+        }
+    }
+
+}
@@ -6,21 +6,22 @@
 
 package ch.cern.mcplots.data;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.net.MalformedURLException;
-import java.net.URL;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpRetryException;
+import java.net.HttpURLConnection;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import org.jsoup.Jsoup;
-import org.jsoup.nodes.Document;
-import org.jsoup.nodes.Element;
-import org.jsoup.select.Elements;
 
 import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.HttpsURLConnection;
@@ -38,6 +39,27 @@ public class TracCrawler {
 
     String tracBrowserURL;
 
+    /**
+     * The on-disk cache for downloaded files (or null if not used)
+     */
+    private TracCache cache;
+
+    /**
+     * The HTTP client used for all the requests
+     */
+    private final WebClient client;
+
+    /**
+     * The HTTP status of responses to clients that send too many requests
+     */
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+    /**
+     * The downloads in progress, by URL. Requests for a URL that is already
+     * being downloaded wait for the same result instead of starting another.
+     */
+    private final ConcurrentHashMap<String, FutureTask<String>> inFlight = new ConcurrentHashMap<>();
+
     /**
      * Call this function once in your program to install a "TrustAll" trust
      * manager that is going to accept all SSL certificates.
@@ -91,6 +113,22 @@ public class TracCrawler {
             this.tracBrowserURL = this.tracBrowserURL.substring(0,this.tracBrowserURL.length()-1);
         }
         
+        // Connections are kept alive between requests
+        this.client = new WebClient();
+        
+    }
+    
+    /**
+     * Use the given on-disk cache for the downloaded files.
+     * 
+     * Files at a tagged revision never change, so they are served from the
+     * cache without any network access. Trunk files are re-validated with
+     * the server before being used.
+     * 
+     * @param cache The cache to use or null to disable caching
+     */
+    public void setCache(TracCache cache) {
+        this.cache = cache;
     }
     
     /**
@@ -98,33 +136,135 @@ public class TracCrawler {
      * @param fromURL The URL to download from
      * @return The string buffer
      */
-    private String wget(String fromURL) {
+    private String wget(final String fromURL) {
         try {
-            
-            // Send request
-            URL url = new URL(fromURL);
-            BufferedReader reader = new BufferedReader(new InputStreamReader(url.openStream()));
-            
-            // Collect response
-            String ans = "";
-            String s = null;
-            while ((s = reader.readLine()) != null) {
-                ans += s + "\n";
-            }
-            
-            // Return answer
-            return ans;
-            
-        } catch (MalformedURLException ex) {
+            return coalesced(fromURL, new Callable<String>() {
+                @Override
+                public String call() throws IOException {
+                    return request(fromURL, 0).body;
+                }
+            });
+        } catch (IOException ex) {
             Logger.getLogger(TracCrawler.class.getName()).log(Level.SEVERE, null, ex);
             return "";
-            
+        }
+    }
+    
+    /**
+     * Run a download, unless the same URL is already being downloaded by
+     * another thread, in which case wait for its result instead.
+     * 
+     * @param fromURL The URL to download
+     * @param download The download
+     * @return The string buffer
+     * @throws IOException If the download failed
+     */
+    private String coalesced(String fromURL, Callable<String> download) throws IOException {
+        FutureTask<String> task = new FutureTask<>(download);
+        FutureTask<String> running = inFlight.putIfAbsent(fromURL, task);
+        if (running == null) {
+            running = task;
+            try {
+                task.run();
+            } finally {
+                inFlight.remove(fromURL, task);
+            }
+        }
+        
+        try {
+            return running.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while fetching " + fromURL);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException(ex.getCause());
+        }
+    }
+    
+    /**
+     * Utility function to conditionally download a string buffer from given URL
+     * @param fromURL The URL to download from
+     * @param ifModifiedSince Do not download the file if not modified since this timestamp (or 0)
+     * @return The response, with an empty body in case of a permanent HTTP error
+     * @throws IOException In case of network errors, or server errors that may go away when retried
+     */
+    private WebClient.Response request(String fromURL, long ifModifiedSince) throws IOException {
+        
+        // Send request
+        WebClient.Response ans = client.get(fromURL, ifModifiedSince);
+        if (ans.isOK() || (ans.status == HttpURLConnection.HTTP_NOT_MODIFIED)) {
+            return ans;
+        }
+        
+        // The server is failing or overloaded
+        if ((ans.status >= 500) || (ans.status == HTTP_TOO_MANY_REQUESTS)) {
+            throw new HttpRetryException("HTTP " + ans.status + " while fetching " + fromURL, ans.status);
+        }
+        
+        // Treat other HTTP errors as empty responses
+        Logger.getLogger(TracCrawler.class.getName()).log(Level.SEVERE, "HTTP {0} while fetching {1}", new Object[]{ ans.status, fromURL });
+        return new WebClient.Response(ans.status, "", 0);
+        
+    }
+    
+    /**
+     * Download the given URL through the on-disk cache
+     * 
+     * @param fromURL The URL to download from
+     * @param key The cache key of the URL
+     * @param rev The revision of the URL or empty for trunk
+     * @return The string buffer
+     */
+    private String cachedGet(String fromURL, String key, String rev) {
+        try {
+            return cachedGetOrFail(fromURL, key, rev);
         } catch (IOException ex) {
             Logger.getLogger(TracCrawler.class.getName()).log(Level.SEVERE, null, ex);
             return "";
         }
     }
     
+    /**
+     * Download the given URL through the on-disk cache, failing on the
+     * errors that may go away when retried.
+     */
+    private String cachedGetOrFail(final String fromURL, final String key, final String rev) throws IOException {
+        return coalesced(fromURL, new Callable<String>() {
+            @Override
+            public String call() throws IOException {
+                return (cache == null) ? request(fromURL, 0).body : cachedGetNow(fromURL, key, rev);
+            }
+        });
+    }
+    
+    /**
+     * Download the given URL through the on-disk cache, in this thread
+     */
+    private String cachedGetNow(String fromURL, String key, String rev) throws IOException {
+        
+        // Tagged revisions never change
+        TracCache.Entry cached = cache.get(key);
+        if ((cached != null) && !rev.isEmpty()) {
+            return cached.body;
+        }
+        
+        // Download or re-validate trunk entry
+        long since = (cached == null) ? 0 : cached.lastModified;
+        WebClient.Response ans = request(fromURL, since);
+        if ((cached != null) && (ans.status == HttpURLConnection.HTTP_NOT_MODIFIED)) {
+            return cached.body;
+        }
+        
+        // Do not cache errors
+        if (!ans.body.isEmpty()) {
+            cache.put(key, ans.body, ans.lastModified);
+        }
+        return ans.body;
+    }
+    
     /**
      * Download a file from TRAC from the given path
      * 
@@ -133,9 +273,28 @@ public class TracCrawler {
      * @return The contents of the file
      */
     public String downloadFile(String path, String rev) {
+        try {
+            return fetchFile(path, rev);
+        } catch (IOException ex) {
+            Logger.getLogger(TracCrawler.class.getName()).log(Level.SEVERE, null, ex);
+            return "";
+        }
+    }
+    
+    /**
+     * Download a file from TRAC from the given path, failing on the errors
+     * that may go away when retried (network errors, HTTP 5xx and 429).
+     * 
+     * @param path The file name relative to root
+     * @param rev The revision (ex. tag revision retrieved from getTagS()) or empty for trunk
+     * @return The contents of the file, or empty if it does not exist
+     * @throws IOException If the download failed, but may succeed later
+     */
+    public String fetchFile(String path, String rev) throws IOException {
 
         // Build URL
-        String fullURL = tracBrowserURL + "/" + path.replace("\\", "/");
+        path = path.replace("\\", "/");
+        String fullURL = tracBrowserURL + "/" + path;
         if (!rev.isEmpty()) {
             fullURL += "?ref=" + rev + "&format=raw";
         } else {
@@ -143,10 +302,67 @@ public class TracCrawler {
         }
         
         // Download
-        return wget(fullURL);
+        return cachedGetOrFail(fullURL, TracCache.key(tracBrowserURL, path, rev), rev);
         
     }
     
+    /**
+     * Open a zip archive of the given directory from TRAC.
+     * 
+     * This replaces a request for every file with a single sequential
+     * download. The caller must close the returned stream.
+     * 
+     * @param path The directory relative to root (empty for the whole repository)
+     * @param rev The revision (ex. tag revision retrieved from getTags())
+     * @return The stream of the zip archive
+     * @throws IOException If the archive could not be requested
+     */
+    public InputStream openArchive(String path, String rev) throws IOException {
+        
+        // Archives are served by the changeset module, next to the browser
+        if (rev.isEmpty()) {
+            throw new IOException("Archives are only available for tagged revisions");
+        }
+        if (!tracBrowserURL.endsWith("/browser")) {
+            throw new IOException("Not a TRAC browser URL: " + tracBrowserURL);
+        }
+        String tracURL = tracBrowserURL.substring(0, tracBrowserURL.length() - "/browser".length());
+        
+        // Build URL
+        String fullURL = tracURL + "/changeset/" + rev + "/" + path.replace("\\", "/") + "?old_path=%2F&format=zip";
+        
+        // Download
+        return client.openStream(fullURL);
+        
+    }
+    
+    /**
+     * Get a file from the on-disk cache only, without any network access
+     * 
+     * @param path The file name relative to root
+     * @param rev The (tagged) revision
+     * @return The contents of the file or null if it's not cached
+     */
+    public String getCachedFile(String path, String rev) {
+        if ((cache == null) || rev.isEmpty()) return null;
+        TracCache.Entry cached = cache.get(TracCache.key(tracBrowserURL, path.replace("\\", "/"), rev));
+        return (cached == null) ? null : cached.body;
+    }
+    
+    /**
+     * Store the contents of a file in the on-disk cache, as if it was
+     * downloaded (ex. because it is known to be the same as in another
+     * revision).
+     * 
+     * @param path The file name relative to root
+     * @param rev The (tagged) revision
+     * @param body The contents of the file
+     */
+    public void putCachedFile(String path, String rev, String body) {
+        if ((cache == null) || rev.isEmpty()) return;
+        cache.put(TracCache.key(tracBrowserURL, path.replace("\\", "/"), rev), body, 0);
+    }
+    
     /**
      * Enumarate the files in the given path
      * 
@@ -155,59 +371,127 @@ public class TracCrawler {
      * @return The list of files in the directory
      */
     public ArrayList<String> getFiles(String path, String rev) {
+        LinkedHashMap<String, String> files = getFileRevisions(path, rev);
+        return (files == null) ? null : new ArrayList<>(files.keySet());
+    }
+    
+    /**
+     * Enumarate the files in the given path, together with the revision
+     * each one was last changed in.
+     * 
+     * Two revisions of a file with the same last-changed revision have
+     * the same contents.
+     * 
+     * @param path The path to list (relative to root, without beginning slash)
+     * @param rev The revision (ex. tag revision retrieved from getTagS()) or empty for trunk
+     * @return The last-changed revision (or empty if unknown) of every file in the directory
+     */
+    public LinkedHashMap<String, String> getFileRevisions(String path, String rev) {
         
         // Build URL
-        String fullURL = tracBrowserURL + "/" + path.replace("\\", "/");
+        path = path.replace("\\", "/");
+        String fullURL = tracBrowserURL + "/" + path;
         if (!rev.isEmpty()) {
             fullURL += "?ref=" + rev;
         }
         
-        // Download TRAC Browser body
-        String body = wget(fullURL);
+        // Download TRAC Browser body (listings are keyed with a trailing slash)
+        String body = cachedGet(fullURL, TracCache.key(tracBrowserURL, path + "/", rev), rev);
         if (body.isEmpty()) return null;
         
-        // Look for the list which contains the tags
-        Document dom = Jsoup.parse(body);
-        
-        // Look for the directory listing element
-        Element eJumpLoc = dom.getElementById("dirlist");
-        if (eJumpLoc == null) return null;
+        // Scan the page up to the directory listing element
+        HtmlTokenizer html = new HtmlTokenizer(body);
+        if (!skipTo(html, "id", "dirlist")) return null;
+        String listTag = html.name();
+        int depth = 1;
         
-        // Look for table rows
-        ArrayList<String> ans = new ArrayList<>();
-        Elements esRows = eJumpLoc.getElementsByTag("tr");
-        for (Element row: esRows) {
-            
-            // Scal columns to find the name
-            Elements esColumns = row.children();
-            for (Element col: esColumns) {
+        // Collect the rows as they are found
+        LinkedHashMap<String, String> ans = new LinkedHashMap<>();
+        String name = null, lastRev = "", column = null;
+        StringBuilder revText = null;
+        boolean linked = false;
+        int t;
+        while ((t = html.next()) != HtmlTokenizer.EOF) {
+            if (t == HtmlTokenizer.TEXT) {
+                
+                // The revision column may contain plain text
+                if (revText != null) html.appendText(revText);
                 
-                // It cas a 'class=name' attrib
-                if (col.hasAttr("class") && col.attr("class").equals("name")) {
+            } else if (t == HtmlTokenizer.START) {
+                String tag = html.name();
+                if (tag.equals(listTag)) {
+                    depth++;
+                } else if (tag.equals("tr")) {
+                    if (name != null) ans.put(name, lastRev);
+                    name = null;
+                    lastRev = "";
+                } else if (tag.equals("td") || tag.equals("th")) {
+                    column = html.attr("class");
+                    revText = "rev".equals(column) ? new StringBuilder() : null;
+                    linked = false;
+                } else if (tag.equals("a") && !linked) {
+                    linked = true;
                     
-                    // Inside it has a link
-                    Elements esLinks = col.getElementsByTag("a");
-                    if (!esLinks.isEmpty()) {
-                        
-                        // Collect ONLY files
-                        Element e = esLinks.first();
-                        if (e.hasAttr("class") && e.attr("class").equals("file")) {
-                            ans.add(e.text());
+                    // Collect ONLY files, from the first link of 'class=name'
+                    if ("name".equals(column)) {
+                        if (html.attrIs("class", "file")) {
+                            name = html.elementText();
                         }
-                        
                     }
                     
+                    // The revision is the text of the first link in 'class=rev'
+                    else if ("rev".equals(column)) {
+                        lastRev = html.elementText();
+                        revText = null;
+                    }
+                }
+            } else {
+                String tag = html.name();
+                if (tag.equals(listTag) && (--depth == 0)) {
+                    break;
+                } else if (tag.equals("tr")) {
+                    if (name != null) ans.put(name, lastRev);
+                    name = null;
+                } else if (tag.equals("td") || tag.equals("th")) {
+                    if (revText != null) lastRev = HtmlTokenizer.normalize(revText);
+                    revText = null;
+                    column = null;
                 }
-                
             }
-            
         }
+        if (name != null) ans.put(name, lastRev);
         
         // Return listing
         return ans;
         
     }
     
+    /**
+     * Move the tokenizer to the first start tag with the given attribute
+     * 
+     * @return FALSE if there is no such tag
+     */
+    private static boolean skipTo(HtmlTokenizer html, String key, String value) {
+        int t;
+        while ((t = html.next()) != HtmlTokenizer.EOF) {
+            if ((t == HtmlTokenizer.START) && html.attrIs(key, value)) return true;
+        }
+        return false;
+    }
+    
+    /**
+     * Move the tokenizer to the next start tag with the given name
+     * 
+     * @return FALSE if there is no such tag
+     */
+    private static boolean skipTo(HtmlTokenizer html, String tag) {
+        int t;
+        while ((t = html.next()) != HtmlTokenizer.EOF) {
+            if ((t == HtmlTokenizer.START) && html.name().equals(tag)) return true;
+        }
+        return false;
+    }
+    
     /**
      * Crawl the TRAC website and locate the tags in the project
      * @return A HashMap in [tag] => [get_params] format
@@ -218,42 +502,39 @@ public class TracCrawler {
         String body = wget(tracBrowserURL);
         if (body.isEmpty()) return null;
         
-        // Look for the list which contains the tags
-        Document dom = Jsoup.parse(body);
-        
-        // Look for the jumploc element
-        Element eJumpLoc = dom.getElementById("jumploc");
-        if (eJumpLoc == null) return null;
+        // Scan the page up to the jumploc element
+        HtmlTokenizer html = new HtmlTokenizer(body);
+        if (!skipTo(html, "id", "jumploc")) return null;
         
         // ... it contains a <select> with everything
-        Elements esSelect = eJumpLoc.getElementsByTag("select");
-        if (esSelect.isEmpty()) return null;
+        if (!skipTo(html, "select")) return null;
         
-        // ... with <optgroup>s
-        Elements esOptGroups = esSelect.first().getElementsByTag("optgroup");
-        for (Element grp: esOptGroups) {
-            // ... look for label=tags
-            if (grp.hasAttr("label") && grp.attr("label").equals("tags")) {
+        // ... with <optgroup>s, look for label=tags
+        int t;
+        while ((t = html.next()) != HtmlTokenizer.EOF) {
+            if ((t == HtmlTokenizer.END) && html.name().equals("select")) break;
+            if ((t != HtmlTokenizer.START) || !html.name().equals("optgroup") || !html.attrIs("label", "tags")) continue;
+            
+            // Traverse optgroup & build tag list
+            HashMap<String, String> ans = new HashMap<>();
+            while ((t = html.next()) != HtmlTokenizer.EOF) {
+                if ((t == HtmlTokenizer.END) && html.name().equals("optgroup")) break;
+                if ((t != HtmlTokenizer.START) || !html.name().equals("option")) continue;
                 
-                // Traverse optgroup & build tag list
-                HashMap<String, String> ans = new HashMap<>();
-                for (Element e: grp.children()) {
-                    
-                    // Get revision argument from URL
-                    String linkURL = e.attr("value");
-                    String[] parts = linkURL.split("\\?rev=");
-                    if (parts.length > 1) {
-                        linkURL = parts[1];
-                    } else {
-                        linkURL = "";
-                    }
-                   
-                    // Store the tag -> param mapping
-                    ans.put(e.text(), linkURL);
+                // Get revision argument from URL
+                String linkURL = html.attr("value");
+                String[] parts = (linkURL == null) ? new String[0] : linkURL.split("\\?rev=");
+                if (parts.length > 1) {
+                    linkURL = parts[1];
+                } else {
+                    linkURL = "";
                 }
-                return ans;
                 
+                // Store the tag -> param mapping
+                ans.put(html.elementText(), linkURL);
             }
+            return ans;
+            
         }
         
         // Something went wrong
@@ -0,0 +1,242 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package ch.cern.mcplots.data;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.UnsupportedCharsetException;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Minimal HTTP client used by the crawlers.
+ *
+ * Response bodies are always read to the end and the streams closed, so
+ * the underlying connections are returned to the JVM keep-alive pool and
+ * re-used by the following requests to the same host.
+ *
+ * @author icharala
+ */
+public class WebClient {
+
+    /**
+     * Maximum number of idle keep-alive connections per host
+     */
+    private static final int MAX_IDLE_CONNECTIONS = 32;
+
+    /**
+     * Default charset if the server does not specify one
+     */
+    private static final Charset DEFAULT_CHARSET = Charset.forName("UTF-8");
+
+    static {
+        // The keep-alive cache reads this property once, so it
+        // must be set before the first connection is opened.
+        if (System.getProperty("http.maxConnections") == null) {
+            System.setProperty("http.maxConnections", String.valueOf(MAX_IDLE_CONNECTIONS));
+        }
+    }
+
+    /**
+     * The response of a request
+     */
+    public static class Response {
+
+        /**
+         * The HTTP status code
+         */
+        public final int status;
+
+        /**
+         * The response body
+         */
+        public final String body;
+
+        /**
+         * The Last-Modified timestamp (or 0 if not specified)
+         */
+        public final long lastModified;
+
+        /**
+         * Create a response
+         * @param status The HTTP status code
+         * @param body The response body
+         * @param lastModified The Last-Modified timestamp
+         */
+        public Response(int status, String body, long lastModified) {
+            this.status = status;
+            this.body = body;
+            this.lastModified = lastModified;
+        }
+
+        /**
+         * Check if the request was successful
+         * @return Returns TRUE if the status code is 2xx
+         */
+        public boolean isOK() {
+            return (status >= 200) && (status < 300);
+        }
+
+    }
+
+    /**
+     * Connect timeout (in milliseconds)
+     */
+    private int connectTimeout;
+
+    /**
+     * Read timeout (in milliseconds)
+     */
+    private int readTimeout;
+
+    /**
+     * Initialize a web client with the default timeouts
+     */
+    public WebClient() {
+        this(10000, 30000);
+    }
+
+    /**
+     * Initialize a web client with the given timeouts
+     * @param connectTimeout The connect timeout (in milliseconds)
+     * @param readTimeout The read timeout (in milliseconds)
+     */
+    public WebClient(int connectTimeout, int readTimeout) {
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+    }
+
+    /**
+     * Change the request timeouts
+     * @param connectTimeout The connect timeout (in milliseconds)
+     * @param readTimeout The read timeout (in milliseconds)
+     */
+    public void setTimeouts(int connectTimeout, int readTimeout) {
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+    }
+
+    /**
+     * Perform a GET request
+     *
+     * @param fromURL The URL to request
+     * @param ifModifiedSince Do not return the body if not modified since this timestamp (or 0)
+     * @return The response
+     * @throws IOException If the request could not be completed
+     */
+    public Response get(String fromURL, long ifModifiedSince) throws IOException {
+
+        // Prepare request
+        HttpURLConnection conn = (HttpURLConnection) new URL(fromURL).openConnection();
+        conn.setConnectTimeout(connectTimeout);
+        conn.setReadTimeout(readTimeout);
+        conn.setRequestProperty("Accept-Encoding", "gzip");
+        if (ifModifiedSince > 0) {
+            conn.setIfModifiedSince(ifModifiedSince);
+        }
+
+        // Send request
+        int status = conn.getResponseCode();
+        InputStream in = (status >= 400) ? conn.getErrorStream() : conn.getInputStream();
+        if (in == null) {
+            return new Response(status, "", conn.getLastModified());
+        }
+
+        // Read the entire body, even for errors, so the connection can be re-used
+        int length = conn.getContentLength();
+        try {
+            if ("gzip".equalsIgnoreCase(conn.getContentEncoding())) {
+                in = new GZIPInputStream(in);
+                length = -1;
+            }
+            byte[] body = readFully(in, length);
+            return new Response(status, new String(body, charsetOf(conn.getContentType())), conn.getLastModified());
+        } finally {
+            in.close();
+        }
+
+    }
+
+    /**
+     * Open a stream to the body of a GET request, for large downloads
+     * that should not be buffered in memory. The caller must close it.
+     *
+     * @param fromURL The URL to request
+     * @return The (decompressed) body stream
+     * @throws IOException If the request failed
+     */
+    public InputStream openStream(String fromURL) throws IOException {
+
+        // Prepare request
+        HttpURLConnection conn = (HttpURLConnection) new URL(fromURL).openConnection();
+        conn.setConnectTimeout(connectTimeout);
+        conn.setReadTimeout(readTimeout);
+        conn.setRequestProperty("Accept-Encoding", "gzip");
+
+        // Send request
+        int status = conn.getResponseCode();
+        if ((status < 200) || (status >= 300)) {
+            InputStream err = conn.getErrorStream();
+            if (err != null) {
+                readFully(err, -1);
+                err.close();
+            }
+            throw new IOException("HTTP " + status + " while fetching " + fromURL);
+        }
+
+        InputStream in = conn.getInputStream();
+        if ("gzip".equalsIgnoreCase(conn.getContentEncoding())) {
+            in = new GZIPInputStream(in);
+        }
+        return in;
+
+    }
+
+    /**
+     * Read an input stream to the end
+     *
+     * @param in The stream to read
+     * @param length The expected length of the stream (or -1 if unknown)
+     * @return The bytes read
+     * @throws IOException
+     */
+    private static byte[] readFully(InputStream in, int length) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream((length > 0) ? length : 8192);
+        byte[] chunk = new byte[8192];
+        int n;
+        while ((n = in.read(chunk)) != -1) {
+            out.write(chunk, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Get the charset from a Content-Type header
+     *
+     * @param contentType The value of the Content-Type header (or null)
+     * @return The charset to decode the body with
+     */
+    private static Charset charsetOf(String contentType) {
+        if (contentType == null) return DEFAULT_CHARSET;
+        for (String param: contentType.split(";")) {
+            param = param.trim();
+            if (param.regionMatches(true, 0, "charset=", 0, 8)) {
+                try {
+                    return Charset.forName(param.substring(8).replace("\"", "").trim());
+                } catch (IllegalCharsetNameException | UnsupportedCharsetException ex) {
+                    return DEFAULT_CHARSET;
+                }
+            }
+        }
+        return DEFAULT_CHARSET;
+    }
+
+}